@@ -0,0 +1,139 @@
+package com.truex.googlereferenceapp;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.services.storage.TestStorage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Replays a simulated ad session through {@link SessionTraceReplayer} and checks what the per-tick
+ * and per-event paths allocate against the budgets in {@code allocation_budgets.properties}. GC
+ * pauses on low-end TV devices show up as dropped frames, so these paths should not quietly start
+ * allocating more.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AllocationBudgetTest {
+  private static final String CLASSTAG = AllocationBudgetTest.class.getSimpleName();
+
+  private static final String BUDGETS = "allocation_budgets.properties";
+  private static final String MEASURED = "allocation_measured.properties";
+
+  // Every break shares one budget.
+  private static final String BREAK_KEY = "break";
+
+  private static final int SIMULATED_BREAKS = 3;
+  private static final int ADS_PER_BREAK = 2;
+  private static final int TICKS_PER_AD = 30;
+  private static final int CONTENT_TICKS_PER_BREAK = 60;
+
+  @Test
+  public void adSessionStaysWithinBaselines() throws IOException {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    SessionTraceReplayer.Report report = SessionTraceReplayer.replay(context, simulatedSession());
+    TreeMap<String, Long> measured = measure(report);
+    saveMeasured(measured);
+
+    Properties budgets = new Properties();
+    try (InputStream stream = InstrumentationRegistry.getInstrumentation().getContext().getAssets().open(BUDGETS)) {
+      budgets.load(stream);
+    }
+    List<String> violations = new ArrayList<>();
+    for (String key : measured.keySet()) {
+      String budget = budgets.getProperty(key.startsWith(BREAK_KEY + "/") ? BREAK_KEY : key);
+      // A new path has to be given a budget before it is allowed to allocate.
+      if (budget == null) {
+        violations.add(key + " allocated " + measured.get(key) + "B, no budget");
+      } else if (measured.get(key) > Long.parseLong(budget)) {
+        violations.add(key + " allocated " + measured.get(key) + "B, budget " + budget + "B");
+      } else {
+        Log.i(CLASSTAG, key + ": " + measured.get(key) + "B of " + budget + "B");
+      }
+    }
+    assertTrue("Allocation budget exceeded: " + violations, violations.isEmpty());
+  }
+
+  // Bytes per call of each replayed event, and per whole break from content pause to resume.
+  private static TreeMap<String, Long> measure(SessionTraceReplayer.Report report) {
+    TreeMap<String, Long> measured = new TreeMap<>();
+    for (SessionTraceReplayer.EventStats stats : report.getEvents()) {
+      if (stats.getCount() > 0) measured.put(stats.getKey(), stats.getAllocatedBytes() / stats.getCount());
+    }
+    List<Long> breaks = report.getBreakAllocations();
+    for (int i = 0; i < breaks.size(); i++) {
+      measured.put(BREAK_KEY + "/" + i, breaks.get(i));
+    }
+    return measured;
+  }
+
+  // Written to the test storage, which Gradle copies to the build outputs, to tighten the budgets.
+  private static void saveMeasured(TreeMap<String, Long> measured) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (String key : measured.keySet()) {
+      text.append(key).append('=').append(measured.get(key)).append('\n');
+    }
+    try (OutputStream stream = new TestStorage().openOutputFile(MEASURED)) {
+      stream.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+  }
+
+  /** A session of a few linear ad breaks, with the progress polls IMA and the UI make. */
+  private static List<SessionTrace.Entry> simulatedSession() throws IOException {
+    SessionTrace trace = new SessionTrace();
+    trace.record(SessionTrace.Source.SESSION, "contentUrl", 0, "https://example.com/content.mp4");
+    StringBuilder cuePoints = new StringBuilder();
+    for (int i = 0; i < SIMULATED_BREAKS; i++) {
+      if (i > 0) cuePoints.append(',');
+      cuePoints.append(i * 300f);
+    }
+    trace.record(SessionTrace.Source.SESSION, "cuePoints", SIMULATED_BREAKS, cuePoints.toString());
+
+    for (int pod = 0; pod < SIMULATED_BREAKS; pod++) {
+      String firstAd = adUrl(pod, 0);
+      trace.record(SessionTrace.Source.AD_EVENT, "LOADED", pod, "GDFP");
+      trace.record(SessionTrace.Source.AD_PLAYER, "loadAd", pod, firstAd);
+      trace.record(SessionTrace.Source.AD_EVENT, "CONTENT_PAUSE_REQUESTED", -1, null);
+      for (int ad = 0; ad < ADS_PER_BREAK; ad++) {
+        String url = adUrl(pod, ad);
+        if (ad > 0) trace.record(SessionTrace.Source.AD_PLAYER, "loadAd", pod, url);
+        trace.record(SessionTrace.Source.AD_PLAYER, "playAd", 0, url);
+        trace.record(SessionTrace.Source.PLAYER, "isPlaying", 1);
+        trace.record(SessionTrace.Source.AD_EVENT, "STARTED", pod, "GDFP");
+        for (int tick = 0; tick < TICKS_PER_AD; tick++) {
+          trace.record(SessionTrace.Source.SESSION, "adProgress");
+          trace.record(SessionTrace.Source.AD_EVENT, "AD_PROGRESS", pod, "GDFP");
+        }
+        trace.record(SessionTrace.Source.PLAYER, "isPlaying", 0);
+        trace.record(SessionTrace.Source.AD_EVENT, "COMPLETED", pod, "GDFP");
+        trace.record(SessionTrace.Source.AD_PLAYER, "stopAd", 0, url);
+      }
+      trace.record(SessionTrace.Source.AD_EVENT, "CONTENT_RESUME_REQUESTED", -1, null);
+      for (int tick = 0; tick < CONTENT_TICKS_PER_BREAK; tick++) {
+        trace.record(SessionTrace.Source.SESSION, "contentProgress");
+      }
+      trace.record(SessionTrace.Source.SESSION, "adMarkers");
+    }
+    // Goes through the binary format, as a recorded trace would.
+    return SessionTrace.read(new ByteArrayInputStream(trace.toByteArray()));
+  }
+
+  private static String adUrl(int pod, int ad) {
+    return "https://example.com/ads/" + pod + "/" + ad + ".mp4";
+  }
+}
@@ -6,6 +6,9 @@ import java.util.List;
 class AdBreak {
   long contentPosition;
   boolean wasStarted;
+  // How long the break covers the content for, for breaks whose ads are part of the stream
+  // itself, e.g. live SCTE-35 breaks; 0 for breaks whose ads are played in between.
+  long durationMs;
 
   static public List<AdBreak> createAdBreaks(List<Float> cuePoints) {
     List<AdBreak> adBreaks = new ArrayList<>();
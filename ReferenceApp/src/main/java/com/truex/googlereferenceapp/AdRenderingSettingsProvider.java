@@ -0,0 +1,159 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.upstream.DefaultBandwidthMeter;
+
+import com.google.ads.interactivemedia.v3.api.Ad;
+import com.google.ads.interactivemedia.v3.api.AdsRenderingSettings;
+import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the AdsRenderingSettings an ads manager is initialized with, so that IMA picks ad media
+ * files this device can start quickly: a bitrate cap from the player's bandwidth estimate and the
+ * resolution the display and decoder can show, and only MIME types there is a decoder for, as
+ * found by {@link DeviceCapabilities}.
+ * <p>
+ * Settings are built again for every ads manager, i.e. for every break's pod in just in time mode.
+ * The ad bitrate IMA chose is recorded against how long the ad took to start.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class AdRenderingSettingsProvider {
+  private static final String CLASSTAG = AdRenderingSettingsProvider.class.getSimpleName();
+
+  public static final int DEFAULT_LOAD_VIDEO_TIMEOUT_MS = 8000;
+
+  // Leaves headroom for the bandwidth estimate being optimistic and for the ad's own overhead.
+  private static final float BANDWIDTH_FRACTION = 0.75f;
+  private static final int MIN_BITRATE_KBPS = 500;
+
+  private static final int MAX_SAMPLES = 64;
+
+  private final Context context;
+  private volatile int loadVideoTimeoutMs = DEFAULT_LOAD_VIDEO_TIMEOUT_MS;
+  private volatile int maxBitrateKbps = Integer.MAX_VALUE;
+
+  private int lastCapKbps = -1;
+  private final int[] chosenKbps = new int[MAX_SAMPLES];
+  private final int[] capKbps = new int[MAX_SAMPLES];
+  private final long[] startupMs = new long[MAX_SAMPLES];
+  private int sampleCount;
+
+  public AdRenderingSettingsProvider(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /** How long IMA waits for an ad's media to load before skipping it. */
+  public void setLoadVideoTimeoutMs(int loadVideoTimeoutMs) {
+    this.loadVideoTimeoutMs = loadVideoTimeoutMs;
+  }
+
+  /** An upper bound on the ad bitrate on top of the measured one, e.g. from a product setting. */
+  public void setMaxBitrateKbps(int maxBitrateKbps) {
+    this.maxBitrateKbps = maxBitrateKbps;
+  }
+
+  /** Settings for an ads manager about to be initialized, from the current bandwidth estimate. */
+  public AdsRenderingSettings create() {
+    DeviceCapabilities device = DeviceCapabilities.get(context);
+    long bandwidth = DefaultBandwidthMeter.getSingletonInstance(context).getBitrateEstimate();
+    int cap = getBitrateCapKbps();
+    List<String> mimeTypes = mimeTypesFor(device);
+
+    AdsRenderingSettings settings = ImaSdkFactory.getInstance().createAdsRenderingSettings();
+    // Let IMA load the next ad while the current one plays, so the player can queue it
+    // for a gapless transition within the pod.
+    settings.setEnablePreloading(true);
+    settings.setLoadVideoTimeout(loadVideoTimeoutMs);
+    settings.setBitrateKbps(cap);
+    settings.setMimeTypes(mimeTypes);
+    Log.i(CLASSTAG, "ad bitrate cap " + cap + "kbps for " + (bandwidth / 1000) + "kbps estimated, "
+      + maxVideoHeight(device) + "p, " + mimeTypes);
+    return settings;
+  }
+
+  /** The ad bitrate IMA should stay under for the current bandwidth estimate and this device. */
+  public int getBitrateCapKbps() {
+    DeviceCapabilities device = DeviceCapabilities.get(context);
+    long bandwidth = DefaultBandwidthMeter.getSingletonInstance(context).getBitrateEstimate();
+    int cap = Math.min(maxBitrateKbps, bitrateForHeight(maxVideoHeight(device)));
+    if (bandwidth > 0) cap = Math.min(cap, (int) (bandwidth * BANDWIDTH_FRACTION / 1000));
+    cap = Math.max(cap, MIN_BITRATE_KBPS);
+    lastCapKbps = cap;
+    return cap;
+  }
+
+  public List<String> getMimeTypes() {
+    return mimeTypesFor(DeviceCapabilities.get(context));
+  }
+
+  public int getLoadVideoTimeoutMs() {
+    return loadVideoTimeoutMs;
+  }
+
+  // Roughly the top of a typical ad encoding ladder at each height.
+  private static int bitrateForHeight(int height) {
+    if (height <= 480) return 1200;
+    if (height <= 720) return 3000;
+    if (height <= 1080) return 6000;
+    return 15000;
+  }
+
+  /** Records the media IMA chose for an ad that just started, and how long it took to start. */
+  public synchronized void onAdStarted(Ad ad, long adStartupMs) {
+    int index = sampleCount % MAX_SAMPLES;
+    chosenKbps[index] = ad.getVastMediaBitrate();
+    capKbps[index] = lastCapKbps;
+    startupMs[index] = adStartupMs;
+    sampleCount++;
+  }
+
+  /** Each ad's chosen bitrate against its cap and start time, most recent last. */
+  @NonNull
+  public synchronized String report() {
+    int count = Math.min(sampleCount, MAX_SAMPLES);
+    if (count == 0) return "no ads started";
+    StringBuilder text = new StringBuilder();
+    long bitrateSum = 0;
+    long startupSum = 0;
+    int startupCount = 0;
+    for (int i = sampleCount - count; i < sampleCount; i++) {
+      int index = i % MAX_SAMPLES;
+      bitrateSum += chosenKbps[index];
+      if (startupMs[index] >= 0) {
+        startupSum += startupMs[index];
+        startupCount++;
+      }
+      text.append(chosenKbps[index]).append("kbps (cap ").append(capKbps[index]).append(") started in ")
+        .append(startupMs[index]).append("ms, ");
+    }
+    return text.append("mean ").append(bitrateSum / count).append("kbps started in ")
+      .append(startupCount == 0 ? -1 : startupSum / startupCount).append("ms").toString();
+  }
+
+  // Streams are played by the player's own HLS and DASH support and adapt to the bandwidth;
+  // progressive files only in formats there is a decoder for.
+  private static List<String> mimeTypesFor(DeviceCapabilities device) {
+    List<String> mimeTypes = new ArrayList<>();
+    mimeTypes.add(MimeTypes.APPLICATION_M3U8);
+    mimeTypes.add(MimeTypes.APPLICATION_MPD);
+    if (device.supports(MimeTypes.VIDEO_H264)) mimeTypes.add(MimeTypes.VIDEO_MP4);
+    if (device.supports(MimeTypes.VIDEO_VP9)) mimeTypes.add(MimeTypes.VIDEO_WEBM);
+    return mimeTypes;
+  }
+
+  // The tallest ad video worth asking for: what both the display and the decoder can show.
+  private static int maxVideoHeight(DeviceCapabilities device) {
+    int decoderHeight = device.getMaxHeight(MimeTypes.VIDEO_H264);
+    int height = Math.min(device.getDisplayHeight(), decoderHeight > 0 ? decoderHeight : 720);
+    return device.isLowRam() ? Math.min(720, height) : height;
+  }
+}
@@ -0,0 +1,157 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An ad schedule compiled from a VMAP resource at build time by the compileVmap Gradle task. Only
+ * what the app needs up front is kept: cue points, ad systems, AdParameters and media urls. IMA is
+ * still given the original VMAP xml.
+ */
+public class AdSchedule {
+  private static final int MAGIC = 0x564D4150; // "VMAP"
+  private static final int VERSION = 1;
+
+  public static class Break {
+    public final String id;
+    // Milliseconds into the content, 0 for a preroll and -1 for a postroll.
+    public final long timeOffsetMs;
+    public final List<Ad> ads;
+
+    Break(String id, long timeOffsetMs, List<Ad> ads) {
+      this.id = id;
+      this.timeOffsetMs = timeOffsetMs;
+      this.ads = ads;
+    }
+
+    public boolean hasInteractiveAd() {
+      for (Ad ad : ads) {
+        if (ad.isInteractive()) return true;
+      }
+      return false;
+    }
+  }
+
+  public static class Ad {
+    public final String id;
+    public final String adSystem;
+    public final boolean isWrapper;
+    public final long durationMs;
+    public final String adParameters;
+    public final String vastAdTagUri;
+    public final List<MediaFile> mediaFiles;
+
+    Ad(String id, String adSystem, boolean isWrapper, long durationMs, String adParameters,
+       String vastAdTagUri, List<MediaFile> mediaFiles) {
+      this.id = id;
+      this.adSystem = adSystem;
+      this.isWrapper = isWrapper;
+      this.durationMs = durationMs;
+      this.adParameters = adParameters;
+      this.vastAdTagUri = vastAdTagUri;
+      this.mediaFiles = mediaFiles;
+    }
+
+    public boolean isInteractive() {
+      return adSystem.contains("trueX") || adSystem.contains("IDVx");
+    }
+  }
+
+  public static class MediaFile {
+    public final String url;
+    public final String type;
+    public final int width;
+    public final int height;
+
+    MediaFile(String url, String type, int width, int height) {
+      this.url = url;
+      this.type = type;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private final List<Break> breaks;
+
+  private AdSchedule(List<Break> breaks) {
+    this.breaks = Collections.unmodifiableList(breaks);
+  }
+
+  public List<Break> getBreaks() {
+    return breaks;
+  }
+
+  /** Loads a compiled schedule from the app's assets, e.g. "ctv_truex_vmap.bin". */
+  public static AdSchedule load(Context context, String assetName) throws IOException {
+    byte[] buffer;
+    try (InputStream stream = context.getAssets().open(assetName)) {
+      // Asset streams know their full length, so this is a single read.
+      buffer = new byte[stream.available()];
+      new DataInputStream(stream).readFully(buffer);
+    }
+    return parse(buffer);
+  }
+
+  public static AdSchedule parse(byte[] buffer) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+    if (in.readInt() != MAGIC) throw new IOException("Not a compiled ad schedule");
+    int version = in.readUnsignedShort();
+    if (version != VERSION) throw new IOException("Unsupported ad schedule version: " + version);
+
+    int breakCount = in.readUnsignedShort();
+    List<Break> breaks = new ArrayList<>(breakCount);
+    for (int i = 0; i < breakCount; i++) {
+      String breakId = in.readUTF();
+      long timeOffsetMs = in.readLong();
+      int adCount = in.readUnsignedShort();
+      List<Ad> ads = new ArrayList<>(adCount);
+      for (int j = 0; j < adCount; j++) {
+        String adId = in.readUTF();
+        String adSystem = in.readUTF();
+        boolean isWrapper = in.readBoolean();
+        long durationMs = in.readLong();
+        String adParameters = in.readUTF();
+        String vastAdTagUri = in.readUTF();
+        int mediaCount = in.readUnsignedShort();
+        List<MediaFile> mediaFiles = new ArrayList<>(mediaCount);
+        for (int k = 0; k < mediaCount; k++) {
+          mediaFiles.add(new MediaFile(in.readUTF(), in.readUTF(), in.readUnsignedShort(), in.readUnsignedShort()));
+        }
+        ads.add(new Ad(adId, adSystem, isWrapper, durationMs, adParameters, vastAdTagUri, mediaFiles));
+      }
+      breaks.add(new Break(breakId, timeOffsetMs, ads));
+    }
+    return new AdSchedule(breaks);
+  }
+
+  /**
+   * The distinct origins of every media file, wrapper tag and interactive ad configuration in the
+   * schedule.
+   */
+  public Set<String> getOrigins() {
+    Set<String> origins = new LinkedHashSet<>();
+    for (Break adBreak : breaks) {
+      for (Ad ad : adBreak.ads) {
+        if (!ad.vastAdTagUri.isEmpty()) addOrigin(origins, ad.vastAdTagUri);
+        if (ad.isInteractive()) origins.addAll(HttpStack.extractOrigins(ad.adParameters));
+        for (MediaFile mediaFile : ad.mediaFiles) addOrigin(origins, mediaFile.url);
+      }
+    }
+    return origins;
+  }
+
+  private static void addOrigin(Set<String> origins, String url) {
+    Uri uri = Uri.parse(url);
+    if (uri.getHost() != null) origins.add(uri.getScheme() + "://" + uri.getAuthority());
+  }
+}
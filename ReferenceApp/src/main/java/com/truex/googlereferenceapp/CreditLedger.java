@@ -0,0 +1,129 @@
+package com.truex.googlereferenceapp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Session-wide record of the content windows a trueX credit made ad-free, tied to the
+ * {@link AdBreak} index. Breaks inside a credited window are discarded as they come up, before any
+ * of their ads are loaded, and the work skipped that way is tallied.
+ */
+public class CreditLedger {
+  private static final String CLASSTAG = CreditLedger.class.getSimpleName();
+
+  // By default a credit covers only the break it was earned in.
+  public static final long DEFAULT_CREDIT_WINDOW_MS = 0;
+
+  private volatile long creditWindowMs;
+  private final BitSet coveredBreaks = new BitSet();
+
+  // Used to estimate what the skipped breaks would have cost; optional.
+  private volatile AdSchedule adSchedule;
+
+  private int credits;
+  private int breaksSkipped;
+  private int adLoadsSkipped;
+  private long adMsSkipped;
+
+  public CreditLedger() {
+    this(DEFAULT_CREDIT_WINDOW_MS);
+  }
+
+  public CreditLedger(long creditWindowMs) {
+    this.creditWindowMs = creditWindowMs;
+  }
+
+  /**
+   * Credits earned from now on cover every break that starts within the given time after the one
+   * they were earned in.
+   */
+  public void setCreditWindowMs(long creditWindowMs) {
+    this.creditWindowMs = creditWindowMs;
+  }
+
+  public void setAdSchedule(AdSchedule adSchedule) {
+    this.adSchedule = adSchedule;
+  }
+
+  /** Records a credit earned in the given break, covering it and the breaks in its window. */
+  public synchronized void credit(List<AdBreak> adBreaks, int breakIndex) {
+    if (adBreaks == null || breakIndex < 0 || breakIndex >= adBreaks.size()) return;
+    credits++;
+    long windowStart = adBreaks.get(breakIndex).contentPosition;
+    long windowEnd = windowStart + creditWindowMs;
+    for (int i = breakIndex; i < adBreaks.size(); i++) {
+      long position = adBreaks.get(i).contentPosition;
+      // A postroll (negative position) is only covered by the credit it was earned in.
+      if (i != breakIndex && (position < 0 || position > windowEnd)) continue;
+      coveredBreaks.set(i);
+    }
+    Log.i(CLASSTAG, "credit at break " + breakIndex + " covers " + coveredBreaks);
+  }
+
+  public synchronized boolean isCovered(int breakIndex) {
+    return breakIndex >= 0 && coveredBreaks.get(breakIndex);
+  }
+
+  /** To be called when a covered break was discarded before it played. */
+  public synchronized void onBreakSkipped(AdBreak adBreak) {
+    breaksSkipped++;
+    AdSchedule.Break scheduled = findScheduledBreak(adBreak);
+    if (scheduled == null) return;
+    for (AdSchedule.Ad ad : scheduled.ads) {
+      if (!ad.isInteractive()) adMsSkipped += ad.durationMs;
+    }
+  }
+
+  /** To be called when an ad of a covered break was not loaded ahead of time. */
+  public synchronized void onAdLoadSkipped() {
+    adLoadsSkipped++;
+  }
+
+  private AdSchedule.Break findScheduledBreak(AdBreak adBreak) {
+    AdSchedule schedule = adSchedule;
+    if (schedule == null) return null;
+    for (AdSchedule.Break scheduled : schedule.getBreaks()) {
+      boolean isPostroll = scheduled.timeOffsetMs < 0 && adBreak.contentPosition < 0;
+      if (isPostroll || scheduled.timeOffsetMs == adBreak.contentPosition) return scheduled;
+    }
+    return null;
+  }
+
+  public synchronized int getBreaksSkipped() {
+    return breaksSkipped;
+  }
+
+  public synchronized int getAdLoadsSkipped() {
+    return adLoadsSkipped;
+  }
+
+  public synchronized long getAdMsSkipped() {
+    return adMsSkipped;
+  }
+
+  /** Estimates the ad media not downloaded, given the mean ad bitrate seen; 0 if that is unknown. */
+  public synchronized long getBytesSaved(long adBitrate) {
+    if (adBitrate <= 0) return 0;
+    return adMsSkipped * adBitrate / 8 / 1000;
+  }
+
+  /** Forgets all credits, i.e. for a new content video. */
+  public synchronized void reset() {
+    coveredBreaks.clear();
+    credits = 0;
+    breaksSkipped = 0;
+    adLoadsSkipped = 0;
+    adMsSkipped = 0;
+  }
+
+  @NonNull
+  public synchronized String report(long adBitrate) {
+    return "credits " + credits + ", breaks skipped " + breaksSkipped
+      + ", ad loads skipped " + adLoadsSkipped + ", ad time skipped " + adMsSkipped + "ms"
+      + ", est. bytes saved " + getBytesSaved(adBitrate);
+  }
+}
@@ -0,0 +1,135 @@
+package com.truex.googlereferenceapp;
+
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.browser.customtabs.CustomTabsClient;
+import androidx.browser.customtabs.CustomTabsIntent;
+import androidx.browser.customtabs.CustomTabsService;
+import androidx.browser.customtabs.CustomTabsServiceConnection;
+import androidx.browser.customtabs.CustomTabsSession;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Opens ad popups in a Custom Tab instead of switching to the browser app. The Custom Tabs service
+ * is bound ahead of time and warmed up again once an interactive ad starts, so the tab shows
+ * quickly and the user comes back straight to the paused ad. Only popups opened before are
+ * announced as likely urls; the ad's own servers are never handed to the browser to prefetch.
+ * <p>
+ * Falls back to a plain browser intent where no Custom Tabs provider exists, e.g. on most TVs.
+ */
+public class CustomTabsPopup {
+  private static final String CLASSTAG = CustomTabsPopup.class.getSimpleName();
+
+  // Popups opened before are the best guess for the next one.
+  private static final int MAX_RECENT_URLS = 4;
+  private static final LinkedHashSet<String> recentUrls = new LinkedHashSet<>();
+
+  private final Context appContext;
+  private CustomTabsServiceConnection connection;
+  private CustomTabsClient client;
+  private CustomTabsSession session;
+
+  public CustomTabsPopup(Context context) {
+    appContext = context.getApplicationContext();
+  }
+
+  /** Binds the Custom Tabs service and warms up the browser. Returns false if there is none. */
+  public boolean bind() {
+    if (connection != null) return true;
+    String packageName = CustomTabsClient.getPackageName(appContext, null);
+    if (packageName == null) {
+      Log.i(CLASSTAG, "no Custom Tabs provider");
+      return false;
+    }
+    connection = new CustomTabsServiceConnection() {
+      @Override
+      public void onCustomTabsServiceConnected(@NonNull ComponentName name, @NonNull CustomTabsClient client) {
+        client.warmup(0);
+        CustomTabsPopup.this.client = client;
+        session = client.newSession(null);
+        Log.i(CLASSTAG, "warmed up " + name.getPackageName());
+      }
+
+      @Override
+      public void onServiceDisconnected(ComponentName name) {
+        client = null;
+        session = null;
+      }
+    };
+    if (!CustomTabsClient.bindCustomTabsService(appContext, packageName, connection)) {
+      connection = null;
+      return false;
+    }
+    return true;
+  }
+
+  public void unbind() {
+    if (connection == null) return;
+    appContext.unbindService(connection);
+    connection = null;
+    client = null;
+    session = null;
+  }
+
+  /**
+   * Warms up the browser for a popup that may be opened soon, and tells it about the popups opened
+   * before, most recent first, as those are the best guess for the next one.
+   */
+  public void prepareForPopup() {
+    if (client != null) client.warmup(0);
+    CustomTabsSession current = session;
+    if (current == null) return;
+
+    List<String> urls = recentUrls();
+    if (urls.isEmpty()) return;
+
+    List<Bundle> others = new ArrayList<>();
+    for (String url : urls.subList(1, urls.size())) {
+      Bundle bundle = new Bundle();
+      bundle.putParcelable(CustomTabsService.KEY_URL, Uri.parse(url));
+      others.add(bundle);
+    }
+    current.mayLaunchUrl(Uri.parse(urls.get(0)), null, others);
+  }
+
+  public void launch(Activity activity, String url) {
+    rememberUrl(url);
+    Uri uri = Uri.parse(url);
+    if (session != null) {
+      try {
+        new CustomTabsIntent.Builder(session).build().launchUrl(activity, uri);
+        return;
+      } catch (ActivityNotFoundException e) {
+        Log.w(CLASSTAG, "Custom Tab launch failed: " + e);
+      }
+    }
+    activity.startActivity(new Intent(Intent.ACTION_VIEW, uri));
+  }
+
+  private static synchronized List<String> recentUrls() {
+    List<String> urls = new ArrayList<>(recentUrls);
+    // Most recent first.
+    Collections.reverse(urls);
+    return urls;
+  }
+
+  private static synchronized void rememberUrl(String url) {
+    recentUrls.remove(url);
+    recentUrls.add(url);
+    if (recentUrls.size() > MAX_RECENT_URLS) {
+      recentUrls.remove(recentUrls.iterator().next());
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.truex.googlereferenceapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Display;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The video decoders of this device, their maximum resolutions and how many instances of each can
+ * run at once. Querying MediaCodecList is slow on some TV SoCs, so the probe runs once per OS build
+ * and is stored on disk, keyed by the build fingerprint; later cold starts read the stored result.
+ * <p>
+ * Used to cap the renditions the player selects, to pick ad media files, to limit concurrent
+ * players and to decide whether the player has to be hidden behind interactive ads.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class DeviceCapabilities {
+  private static final String CLASSTAG = DeviceCapabilities.class.getSimpleName();
+
+  private static final int MAGIC = 0x44434150; // "DCAP"
+  private static final int VERSION = 1;
+  private static final String FILE_NAME = "device_capabilities.bin";
+
+  private static final String[] PROBED_TYPES = {
+    MimeTypes.VIDEO_H264, MimeTypes.VIDEO_H265, MimeTypes.VIDEO_VP9, MimeTypes.VIDEO_AV1
+  };
+
+  /** One decoder's limits for one MIME type. */
+  public static class Decoder {
+    public final String name;
+    public final String mimeType;
+    public final int maxWidth;
+    public final int maxHeight;
+    public final int maxInstances;
+    public final boolean hardwareAccelerated;
+
+    Decoder(String name, String mimeType, int maxWidth, int maxHeight, int maxInstances,
+            boolean hardwareAccelerated) {
+      this.name = name;
+      this.mimeType = mimeType;
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      this.maxInstances = maxInstances;
+      this.hardwareAccelerated = hardwareAccelerated;
+    }
+  }
+
+  private static DeviceCapabilities instance;
+
+  private final List<Decoder> decoders;
+  private final int displayWidth;
+  private final int displayHeight;
+  private final boolean lowRam;
+  private final boolean allowsPlayerUnderOverlay;
+
+  private DeviceCapabilities(List<Decoder> decoders, int displayWidth, int displayHeight, boolean lowRam,
+                             boolean allowsPlayerUnderOverlay) {
+    this.decoders = Collections.unmodifiableList(decoders);
+    this.displayWidth = displayWidth;
+    this.displayHeight = displayHeight;
+    this.lowRam = lowRam;
+    this.allowsPlayerUnderOverlay = allowsPlayerUnderOverlay;
+  }
+
+  /** Loads the stored probe for this build, or probes and stores it. May be slow the first time. */
+  public static synchronized DeviceCapabilities get(Context context) {
+    if (instance != null) return instance;
+    Context appContext = context.getApplicationContext();
+    File file = new File(appContext.getFilesDir(), FILE_NAME);
+    long start = SystemClock.elapsedRealtime();
+
+    List<Decoder> decoders = null;
+    try {
+      decoders = read(file, Build.FINGERPRINT);
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "stored capabilities unreadable: " + e);
+    }
+    boolean probed = decoders == null;
+    if (probed) {
+      decoders = probe();
+      try {
+        write(file, Build.FINGERPRINT, decoders);
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "could not store capabilities: " + e);
+      }
+    }
+
+    // The display is cheap to query and may change, e.g. a TV box moved to another screen.
+    int width = 1920;
+    int height = 1080;
+    DisplayManager displayManager = appContext.getSystemService(DisplayManager.class);
+    Display display = displayManager == null ? null : displayManager.getDisplay(Display.DEFAULT_DISPLAY);
+    if (display != null) {
+      Display.Mode mode = display.getMode();
+      width = Math.max(mode.getPhysicalWidth(), mode.getPhysicalHeight());
+      height = Math.min(mode.getPhysicalWidth(), mode.getPhysicalHeight());
+    }
+    ActivityManager activityManager = appContext.getSystemService(ActivityManager.class);
+    boolean lowRam = activityManager != null && activityManager.isLowRamDevice();
+
+    boolean allowsPlayerUnderOverlay = Arrays.asList(
+      appContext.getResources().getStringArray(R.array.player_under_overlay_devices)).contains(Build.DEVICE);
+
+    instance = new DeviceCapabilities(decoders, width, height, lowRam, allowsPlayerUnderOverlay);
+    Log.i(CLASSTAG, (probed ? "probed " : "loaded ") + decoders.size() + " decoders in "
+      + (SystemClock.elapsedRealtime() - start) + "ms, display " + width + "x" + height);
+    return instance;
+  }
+
+  private static List<Decoder> probe() {
+    List<Decoder> decoders = new ArrayList<>();
+    for (MediaCodecInfo codec : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+      if (codec.isEncoder()) continue;
+      for (String type : codec.getSupportedTypes()) {
+        String mimeType = probedType(type);
+        if (mimeType == null) continue;
+        try {
+          MediaCodecInfo.CodecCapabilities capabilities = codec.getCapabilitiesForType(type);
+          MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+          if (video == null) continue;
+          decoders.add(new Decoder(codec.getName(), mimeType, video.getSupportedWidths().getUpper(),
+            video.getSupportedHeights().getUpper(), capabilities.getMaxSupportedInstances(),
+            codec.isHardwareAccelerated()));
+        } catch (IllegalArgumentException e) {
+          // Some vendor codecs list types they then fail to describe.
+          Log.w(CLASSTAG, codec.getName() + " " + type + ": " + e);
+        }
+      }
+    }
+    return decoders;
+  }
+
+  private static String probedType(String type) {
+    for (String probed : PROBED_TYPES) {
+      if (probed.equalsIgnoreCase(type)) return probed;
+    }
+    return null;
+  }
+
+  // Returns null if the file is missing or was written for another build.
+  private static List<Decoder> read(File file, String fingerprint) throws IOException {
+    if (!file.exists()) return null;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return null;
+      if (!fingerprint.equals(in.readUTF())) return null;
+      int count = in.readUnsignedShort();
+      List<Decoder> decoders = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        decoders.add(new Decoder(in.readUTF(), in.readUTF(), in.readInt(), in.readInt(), in.readUnsignedShort(),
+          in.readBoolean()));
+      }
+      return decoders;
+    }
+  }
+
+  private static void write(File file, String fingerprint, List<Decoder> decoders) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeUTF(fingerprint);
+      out.writeShort(decoders.size());
+      for (Decoder decoder : decoders) {
+        out.writeUTF(decoder.name);
+        out.writeUTF(decoder.mimeType);
+        out.writeInt(decoder.maxWidth);
+        out.writeInt(decoder.maxHeight);
+        out.writeShort(Math.min(decoder.maxInstances, 0xFFFF));
+        out.writeBoolean(decoder.hardwareAccelerated);
+      }
+    }
+    // Written aside first, so a crash mid-write never leaves a truncated file behind.
+    if (!temp.renameTo(file)) throw new IOException("Cannot replace " + file);
+  }
+
+  public List<Decoder> getDecoders() {
+    return decoders;
+  }
+
+  public boolean supports(String mimeType) {
+    return getMaxHeight(mimeType) > 0;
+  }
+
+  /** The tallest video any decoder of the type can decode, or 0 if there is none. */
+  public int getMaxHeight(String mimeType) {
+    int height = 0;
+    for (Decoder decoder : decoders) {
+      if (decoder.mimeType.equals(mimeType)) height = Math.max(height, decoder.maxHeight);
+    }
+    return height;
+  }
+
+  public int getMaxWidth(String mimeType) {
+    int width = 0;
+    for (Decoder decoder : decoders) {
+      if (decoder.mimeType.equals(mimeType)) width = Math.max(width, decoder.maxWidth);
+    }
+    return width;
+  }
+
+  /** How many videos of the type can be decoded at once, preferring hardware decoders. */
+  public int getMaxInstances(String mimeType) {
+    int hardware = 0;
+    int any = 0;
+    for (Decoder decoder : decoders) {
+      if (!decoder.mimeType.equals(mimeType)) continue;
+      any = Math.max(any, decoder.maxInstances);
+      if (decoder.hardwareAccelerated) hardware = Math.max(hardware, decoder.maxInstances);
+    }
+    return hardware > 0 ? hardware : any;
+  }
+
+  public int getDisplayWidth() {
+    return displayWidth;
+  }
+
+  public int getDisplayHeight() {
+    return displayHeight;
+  }
+
+  public boolean isLowRam() {
+    return lowRam;
+  }
+
+  /**
+   * Whether the player's view must be hidden for an interactive ad's own video to show. Many
+   * devices put the player's video above it, so only devices on the player_under_overlay_devices
+   * allowlist that can also run a second H.264 decoder keep it visible.
+   */
+  public boolean needsHiddenPlayerForOverlay() {
+    return !allowsPlayerUnderOverlay || getMaxInstances(MimeTypes.VIDEO_H264) < 2;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "H.264 up to " + getMaxHeight(MimeTypes.VIDEO_H264) + "p x" + getMaxInstances(MimeTypes.VIDEO_H264)
+      + ", HEVC " + getMaxHeight(MimeTypes.VIDEO_H265) + "p, VP9 " + getMaxHeight(MimeTypes.VIDEO_VP9)
+      + "p, AV1 " + getMaxHeight(MimeTypes.VIDEO_AV1) + "p, display " + displayWidth + "x" + displayHeight
+      + (lowRam ? ", low RAM" : "");
+  }
+}
@@ -0,0 +1,192 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Measures what break boundaries cost, so the playback engines can be compared: the time playback
+ * is stalled while it should be playing, and how often video decoders are initialized. Each
+ * session is added to its engine's totals on disk, so runs with either engine add up to a
+ * comparison.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class EngineBenchmark implements AnalyticsListener {
+  private static final String CLASSTAG = EngineBenchmark.class.getSimpleName();
+
+  private static final String TOTALS_FILE_NAME = "engine_benchmark.bin";
+  private static final int MAGIC = 0x454E4742; // "ENGB"
+  private static final int VERSION = 1;
+
+  // Per engine totals, in this order.
+  private static final int SESSIONS = 0;
+  private static final int BOUNDARIES = 1;
+  private static final int STALL_MS = 2;
+  private static final int DECODER_INITS = 3;
+  private static final int DECODER_INIT_MS = 4;
+  private static final int TOTALS = 5;
+
+  private int boundaries;
+  private long stallMs;
+  private int videoDecoderInits;
+  private long videoDecoderInitMs;
+
+  private boolean playWhenReady;
+  private int playbackState = Player.STATE_IDLE;
+  private boolean hasBeenReady;
+  private long stallStart = -1;
+
+  @Override
+  public void onTimelineChanged(@NonNull EventTime eventTime, int reason) {
+    // A new media source, i.e. a stop and re-prepare at a boundary.
+    if (reason == Player.TIMELINE_CHANGE_REASON_PLAYLIST_CHANGED) boundaries++;
+  }
+
+  @Override
+  public void onPositionDiscontinuity(@NonNull EventTime eventTime, @NonNull Player.PositionInfo oldPosition,
+                                      @NonNull Player.PositionInfo newPosition, int reason) {
+    // Moving on within a playlist or ad timeline without re-preparing.
+    if (reason == Player.DISCONTINUITY_REASON_AUTO_TRANSITION) boundaries++;
+  }
+
+  @Override
+  public void onPlayWhenReadyChanged(@NonNull EventTime eventTime, boolean playWhenReady, int reason) {
+    this.playWhenReady = playWhenReady;
+    updateStall();
+  }
+
+  @Override
+  public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+    playbackState = state;
+    if (state == Player.STATE_READY) hasBeenReady = true;
+    updateStall();
+  }
+
+  @Override
+  public void onVideoDecoderInitialized(@NonNull EventTime eventTime, @NonNull String decoderName,
+                                        long initializedTimestampMs, long initializationDurationMs) {
+    videoDecoderInits++;
+    videoDecoderInitMs += initializationDurationMs;
+  }
+
+  private void updateStall() {
+    long now = SystemClock.elapsedRealtime();
+    boolean stalled = hasBeenReady && playWhenReady
+      && playbackState != Player.STATE_READY && playbackState != Player.STATE_ENDED;
+    if (stalled && stallStart < 0) {
+      stallStart = now;
+    } else if (!stalled && stallStart >= 0) {
+      stallMs += now - stallStart;
+      stallStart = -1;
+    }
+  }
+
+  public int getBoundaries() {
+    return boundaries;
+  }
+
+  public long getStallMs() {
+    return stallMs;
+  }
+
+  public int getVideoDecoderInits() {
+    return videoDecoderInits;
+  }
+
+  public String report() {
+    long perBoundary = boundaries == 0 ? 0 : stallMs / boundaries;
+    return boundaries + " boundaries, " + stallMs + "ms stalled (" + perBoundary + "ms each), "
+      + videoDecoderInits + " video decoder inits taking " + videoDecoderInitMs + "ms";
+  }
+
+  /**
+   * Adds this session to the totals of the engine it ran on and returns how the engines compare
+   * over all sessions stored so far.
+   */
+  @WorkerThread
+  public String saveAndCompare(Context context, PlaybackEngine engine) {
+    File file = new File(context.getFilesDir(), TOTALS_FILE_NAME);
+    long[][] totals = new long[PlaybackEngine.values().length][TOTALS];
+    try {
+      read(file, totals);
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "stored totals unreadable: " + e);
+    }
+    long[] engineTotals = totals[engine.ordinal()];
+    engineTotals[SESSIONS]++;
+    engineTotals[BOUNDARIES] += boundaries;
+    engineTotals[STALL_MS] += stallMs;
+    engineTotals[DECODER_INITS] += videoDecoderInits;
+    engineTotals[DECODER_INIT_MS] += videoDecoderInitMs;
+    try {
+      write(file, totals);
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "could not store totals: " + e);
+    }
+    return compare(totals);
+  }
+
+  // Stall and decoder cost per boundary, the figures the engines differ in.
+  private static String compare(long[][] totals) {
+    StringBuilder comparison = new StringBuilder();
+    for (PlaybackEngine engine : PlaybackEngine.values()) {
+      long[] engineTotals = totals[engine.ordinal()];
+      long boundaries = Math.max(1, engineTotals[BOUNDARIES]);
+      if (comparison.length() > 0) comparison.append("; ");
+      comparison.append(engine).append(": ").append(engineTotals[SESSIONS]).append(" sessions, ")
+        .append(engineTotals[BOUNDARIES]).append(" boundaries, ")
+        .append(engineTotals[STALL_MS] / boundaries).append("ms stalled and ")
+        .append(String.format(Locale.US, "%.2f", (float) engineTotals[DECODER_INITS] / boundaries))
+        .append(" decoder inits (").append(engineTotals[DECODER_INIT_MS] / boundaries)
+        .append("ms) per boundary");
+    }
+    return comparison.toString();
+  }
+
+  // Totals are matched by engine name, so engines can be added without losing the others.
+  private static void read(File file, long[][] totals) throws IOException {
+    if (!file.exists()) return;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return;
+      int engines = in.readUnsignedByte();
+      for (int i = 0; i < engines; i++) {
+        String name = in.readUTF();
+        long[] engineTotals = new long[TOTALS];
+        for (int j = 0; j < TOTALS; j++) engineTotals[j] = in.readLong();
+        for (PlaybackEngine engine : PlaybackEngine.values()) {
+          if (engine.name().equals(name)) totals[engine.ordinal()] = engineTotals;
+        }
+      }
+    }
+  }
+
+  private static void write(File file, long[][] totals) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeByte(totals.length);
+      for (PlaybackEngine engine : PlaybackEngine.values()) {
+        out.writeUTF(engine.name());
+        for (long total : totals[engine.ordinal()]) out.writeLong(total);
+      }
+    }
+    // Written aside first, so a crash mid-write never leaves a truncated file behind.
+    if (!temp.renameTo(file)) throw new IOException("Cannot replace " + file);
+  }
+}
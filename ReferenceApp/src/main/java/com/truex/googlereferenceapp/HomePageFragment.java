@@ -1,19 +1,34 @@
 package com.truex.googlereferenceapp;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.Toast;
 
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 
+import java.io.IOException;
+
 public class HomePageFragment extends Fragment implements View.OnClickListener {
   private static final String CLASSTAG = HomePageFragment.class.getSimpleName();
 
+  // How long focus has to rest on the play button before playback is prewarmed.
+  private static final long PREWARM_DWELL_MS = 500;
+
   private Button playButton;
+  private View homePage;
+  private ImageView logoView;
+
+  // Set when leaving for the player, which adopts the prewarmed playback.
+  private boolean startingPlayback;
+
+  private final Runnable prewarmTask = this::startPrewarm;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -21,14 +36,65 @@ public class HomePageFragment extends Fragment implements View.OnClickListener {
     View view = inflater.inflate(R.layout.fragment_home, container, false);
     playButton = view.findViewById(R.id.playbackButton);
     playButton.setOnClickListener(this);
+    playButton.setOnFocusChangeListener((v, hasFocus) -> {
+      // Focus given while resuming is handled by onResume itself.
+      if (!hasFocus) {
+        playButton.removeCallbacks(prewarmTask);
+      } else if (isResumed()) {
+        schedulePrewarm();
+      }
+    });
+
+    // Debug builds download the sample video and its ads for offline playback on a long press.
+    if (BuildConfig.DEBUG) {
+      playButton.setOnLongClickListener(v -> {
+        downloadSampleItem();
+        return true;
+      });
+    }
+
+    // The full resolution artwork is decoded in the background, at the size it is shown.
+    homePage = view.findViewById(R.id.homePage);
+    logoView = view.findViewById(R.id.imageView);
+    ImageLoader imageLoader = ImageLoader.get(requireContext());
+    imageLoader.loadBackground(homePage, R.drawable.details_flow_bg_fhd_darken);
+    imageLoader.load(logoView, R.drawable.true_vision_logo_fhd);
     return view;
   }
 
+  @Override
+  public void onDestroyView() {
+    Log.i(CLASSTAG, "onDestroyView");
+    // The view is dropped while the player is shown, so don't keep its artwork around either.
+    homePage.setBackground(null);
+    logoView.setImageDrawable(null);
+    ImageLoader imageLoader = ImageLoader.get(requireContext());
+    imageLoader.evict(R.drawable.details_flow_bg_fhd_darken);
+    imageLoader.evict(R.drawable.true_vision_logo_fhd);
+    super.onDestroyView();
+  }
+
   @Override
   public void onResume() {
     Log.i(CLASSTAG, "onResume");
     if (playButton != null) playButton.requestFocus();
     super.onResume();
+
+    // The prewarm was cancelled on pause, so it restarts whenever the page shows with focus on play.
+    if (playButton != null && playButton.hasFocus()) schedulePrewarm();
+
+    // Warm up the ad renderers once the home page has settled, ahead of the first ad break.
+    RendererWarmup.get(requireContext()).scheduleAtIdle(VideoFragment.scheduleAsset(requireContext()));
+  }
+
+  @Override
+  public void onPause() {
+    Log.i(CLASSTAG, "onPause");
+    if (playButton != null) playButton.removeCallbacks(prewarmTask);
+    // Leaving without playing: stop the speculative prefetch.
+    if (!startingPlayback) PlaybackPrewarm.get().cancel();
+    startingPlayback = false;
+    super.onPause();
   }
 
   @Override
@@ -46,6 +112,20 @@ public class HomePageFragment extends Fragment implements View.OnClickListener {
     }
   }
 
+  // The play button is likely to be pressed next once focus rests on it, so get playback ready in
+  // the background.
+  private void schedulePrewarm() {
+    playButton.removeCallbacks(prewarmTask);
+    playButton.postDelayed(prewarmTask, PREWARM_DWELL_MS);
+  }
+
+  private void startPrewarm() {
+    if (!isResumed()) return;
+    Context context = requireContext();
+    PlaybackPrewarm.get().start(context, VideoFragment.CONTENT_URL,
+      VideoFragment.vmapResource(context), VideoFragment.scheduleAsset(context));
+  }
+
   private void loadFragment(Fragment fragment) {
     FragmentActivity activity = getActivity();
     activity.getSupportFragmentManager().beginTransaction()
@@ -54,7 +134,24 @@ public class HomePageFragment extends Fragment implements View.OnClickListener {
       .commit();
   }
 
+  private void downloadSampleItem() {
+    Context appContext = requireContext().getApplicationContext();
+    // Created here, as the download manager is used from the main thread.
+    OfflineDownloads offlineDownloads = OfflineDownloads.get(appContext);
+    String scheduleAsset = VideoFragment.scheduleAsset(appContext);
+    PlaybackInfrastructure.get(appContext).getWorkerExecutor().execute(() -> {
+      try {
+        offlineDownloads.downloadItem(OfflineDownloads.SAMPLE_ITEM_ID, VideoFragment.CONTENT_URL,
+          AdSchedule.load(appContext, scheduleAsset));
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "offline download skipped: " + e);
+      }
+    });
+    Toast.makeText(appContext, R.string.offline_download_queued, Toast.LENGTH_SHORT).show();
+  }
+
   private void loadPlayerFragment() {
+    startingPlayback = true;
     loadFragment(new VideoFragment());
   }
 }
@@ -0,0 +1,212 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.datasource.okhttp.OkHttpDataSource;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide HTTP stack for all media loading. A single pooled client means ad breaks reuse the
+ * warm HTTP/2 connections and TLS sessions of earlier requests instead of paying new DNS, TCP and
+ * TLS handshakes to every ad host.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class HttpStack {
+  private static final String CLASSTAG = HttpStack.class.getSimpleName();
+
+  private static final int MAX_IDLE_CONNECTIONS = 8;
+  private static final long KEEP_ALIVE_MINUTES = 5;
+
+  private static final Pattern URL_PATTERN = Pattern.compile("https?://[^\\s\"'<>&]+");
+
+  private static HttpStack instance;
+
+  private final OkHttpClient client;
+
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger newConnectionCount = new AtomicInteger();
+  private final AtomicInteger totalConnectMs = new AtomicInteger();
+
+  public static synchronized HttpStack get() {
+    if (instance == null) {
+      instance = new HttpStack(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+    }
+    return instance;
+  }
+
+  /**
+   * Use {@link Protocol#H2_PRIOR_KNOWLEDGE} alone to talk to a local cleartext HTTP/2 stand-in
+   * server.
+   */
+  HttpStack(List<Protocol> protocols) {
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+      .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+      .protocols(protocols)
+      .eventListenerFactory(call -> new ConnectTimingListener());
+
+    // Match the relaxed certificate checking the app installs for the platform stack.
+    SSLContext sslContext = TrustAll.createSslContext();
+    if (sslContext != null) {
+      builder.sslSocketFactory(sslContext.getSocketFactory(), TrustAll.TRUST_MANAGER);
+    }
+    client = builder.build();
+  }
+
+  public OkHttpClient getClient() {
+    return client;
+  }
+
+  /** Data source factory for media loads, backed by the shared pooled client. */
+  public DataSource.Factory createDataSourceFactory(Context context) {
+    return new DefaultDataSource.Factory(context, new OkHttpDataSource.Factory(client));
+  }
+
+  /** Extracts the distinct http(s) origins referenced by an ad response or any other text. */
+  public static Set<String> extractOrigins(String text) {
+    Set<String> origins = new LinkedHashSet<>();
+    if (text == null) return origins;
+    Matcher matcher = URL_PATTERN.matcher(text);
+    while (matcher.find()) {
+      Uri uri = Uri.parse(matcher.group());
+      if (uri.getHost() != null) {
+        origins.add(uri.getScheme() + "://" + uri.getAuthority());
+      }
+    }
+    return origins;
+  }
+
+  /**
+   * Resolves and connects to the given origins in the background, without sending any request, so
+   * that DNS is cached and the TLS session can be resumed by the time their media is needed.
+   */
+  public void preconnect(Collection<String> origins) {
+    for (String origin : origins) {
+      client.dispatcher().executorService().execute(() -> {
+        try {
+          preconnectNow(origin);
+        } catch (IOException e) {
+          Log.w(CLASSTAG, "preconnect failed: " + origin + ": " + e);
+        }
+      });
+    }
+  }
+
+  // A bare TCP connect and TLS handshake with the client's own socket factories, whose session
+  // cache the client's later connections resume from. Ad servers see no request.
+  void preconnectNow(String origin) throws IOException {
+    HttpUrl url = HttpUrl.get(origin);
+    InetAddress address = client.dns().lookup(url.host()).get(0);
+    try (Socket socket = client.socketFactory().createSocket()) {
+      socket.connect(new InetSocketAddress(address, url.port()), client.connectTimeoutMillis());
+      if (!url.isHttps()) return;
+      try (SSLSocket tls = (SSLSocket) client.sslSocketFactory().createSocket(socket, url.host(), url.port(), false)) {
+        tls.startHandshake();
+      }
+    }
+  }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  public int getNewConnectionCount() {
+    return newConnectionCount.get();
+  }
+
+  /** Total time spent establishing new connections, i.e. what pooling did not save. */
+  public long getTotalConnectMs() {
+    return totalConnectMs.get();
+  }
+
+  /** Logs per request whether a pooled connection was reused, or how long a new one took. */
+  private class ConnectTimingListener extends EventListener {
+    private long dnsStart;
+    private long dnsMs;
+    private long connectStart;
+    private long secureConnectStart;
+    private long tlsMs;
+
+    @Override
+    public void callStart(@NonNull Call call) {
+      requestCount.incrementAndGet();
+    }
+
+    @Override
+    public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+      dnsStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void dnsEnd(@NonNull Call call, @NonNull String domainName, @NonNull List<InetAddress> inetAddressList) {
+      dnsMs = SystemClock.elapsedRealtime() - dnsStart;
+    }
+
+    @Override
+    public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+      connectStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void secureConnectStart(@NonNull Call call) {
+      secureConnectStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+      tlsMs = SystemClock.elapsedRealtime() - secureConnectStart;
+    }
+
+    @Override
+    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                           @NonNull Proxy proxy, @Nullable Protocol protocol) {
+      long connectMs = SystemClock.elapsedRealtime() - connectStart;
+      newConnectionCount.incrementAndGet();
+      totalConnectMs.addAndGet((int) connectMs);
+      Log.i(CLASSTAG, "connected " + call.request().url().host() + " (" + protocol + "): dns " + dnsMs
+        + "ms, connect " + connectMs + "ms, tls " + tlsMs + "ms");
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+      if (connectStart == 0) {
+        Log.d(CLASSTAG, "reused connection to " + call.request().url().host()
+          + " (" + connection.protocol() + ")");
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.truex.googlereferenceapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+import android.widget.ImageView;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Loads drawable resources off the main thread, downsampled to the size of the view they are shown
+ * in, and keeps them in a memory bounded LRU cache. Used for the large home page images so that
+ * they neither hold up inflation nor stay resident at full resolution.
+ */
+public class ImageLoader implements MemoryTrimPolicy.Trimmable {
+  private static final String CLASSTAG = ImageLoader.class.getSimpleName();
+
+  private static ImageLoader instance;
+
+  private final Resources resources;
+  private final Executor executor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final LruCache<String, Bitmap> cache;
+
+  // Bumped by every eviction, so that loads started before it neither refill the cache nor show.
+  private int generation;
+
+  public static synchronized ImageLoader get(Context context) {
+    if (instance == null) {
+      instance = new ImageLoader(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private ImageLoader(Context appContext) {
+    resources = appContext.getResources();
+    executor = PlaybackInfrastructure.get(appContext).getWorkerExecutor();
+
+    // At most an eighth of the app's heap budget.
+    ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+    int cacheBytes = activityManager.getMemoryClass() * 1024 * 1024 / 8;
+    cache = new LruCache<String, Bitmap>(cacheBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+      }
+    };
+  }
+
+  /** Shows the drawable in the image view, decoded to the view's size. */
+  public void load(ImageView view, @DrawableRes int resId) {
+    load(view, resId, false, view::setImageBitmap);
+  }
+
+  /**
+   * Sets the drawable as the view's background, centered and unscaled like a bitmap drawable with
+   * center gravity. Only the part the view shows is decoded, without alpha.
+   */
+  public void loadBackground(View view, @DrawableRes int resId) {
+    load(view, resId, true, bitmap -> {
+      BitmapDrawable background = new BitmapDrawable(resources, bitmap);
+      background.setGravity(Gravity.CENTER);
+      view.setBackground(background);
+    });
+  }
+
+  private void load(View view, @DrawableRes int resId, boolean background, Consumer<Bitmap> target) {
+    whenLaidOut(view, () -> {
+      int width = view.getWidth();
+      int height = view.getHeight();
+      String key = resId + "@" + width + "x" + height;
+      Bitmap cached = cache.get(key);
+      if (cached != null) {
+        target.accept(cached);
+        return;
+      }
+
+      // Only the latest request for a view may set its image.
+      view.setTag(R.id.image_loader_request, key);
+      int requestGeneration = generation;
+      executor.execute(() -> {
+        Bitmap bitmap = background ? decodeCentered(resId, width, height) : decode(resId, width, height);
+        mainHandler.post(() -> {
+          if (bitmap == null || requestGeneration != generation) return;
+          cache.put(key, bitmap);
+          if (key.equals(view.getTag(R.id.image_loader_request))) target.accept(bitmap);
+        });
+      });
+    });
+  }
+
+  private static void whenLaidOut(View view, Runnable action) {
+    if (view.getWidth() > 0 && view.getHeight() > 0) {
+      action.run();
+      return;
+    }
+    view.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+      @Override
+      public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                 int oldLeft, int oldTop, int oldRight, int oldBottom) {
+        if (v.getWidth() > 0 && v.getHeight() > 0) {
+          v.removeOnLayoutChangeListener(this);
+          action.run();
+        }
+      }
+    });
+  }
+
+  @WorkerThread
+  private Bitmap decode(@DrawableRes int resId, int width, int height) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    // Work from the file's own pixels; density scaling would only upscale before we downsample.
+    options.inScaled = false;
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeResource(resources, resId, options);
+
+    options.inSampleSize = sampleSize(options.outWidth, options.outHeight, width, height);
+    options.inJustDecodeBounds = false;
+    Bitmap bitmap = BitmapFactory.decodeResource(resources, resId, options);
+    if (bitmap == null) Log.w(CLASSTAG, "could not decode resource " + resId);
+    return bitmap;
+  }
+
+  // Decodes the centered part of the image that a view of the given size shows when the image is
+  // drawn at the platform's density scale, sampled down no further than that scale.
+  @WorkerThread
+  private Bitmap decodeCentered(@DrawableRes int resId, int viewWidth, int viewHeight) {
+    TypedValue value = new TypedValue();
+    try (InputStream in = resources.openRawResource(resId, value)) {
+      BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+      try {
+        int imageDensity = value.density == TypedValue.DENSITY_DEFAULT ? DisplayMetrics.DENSITY_DEFAULT
+          : value.density == TypedValue.DENSITY_NONE ? resources.getDisplayMetrics().densityDpi : value.density;
+        float scale = (float) resources.getDisplayMetrics().densityDpi / imageDensity;
+        int regionWidth = Math.min(decoder.getWidth(), Math.round(viewWidth / scale));
+        int regionHeight = Math.min(decoder.getHeight(), Math.round(viewHeight / scale));
+        int left = (decoder.getWidth() - regionWidth) / 2;
+        int top = (decoder.getHeight() - regionHeight) / 2;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(regionWidth, regionHeight,
+          Math.round(regionWidth * scale), Math.round(regionHeight * scale));
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = decoder.decodeRegion(new Rect(left, top, left + regionWidth, top + regionHeight), options);
+        // At the image's density divided by the sampling, the drawable draws it at the platform's scale.
+        if (bitmap != null) bitmap.setDensity(Math.max(1, imageDensity / options.inSampleSize));
+        return bitmap;
+      } finally {
+        decoder.recycle();
+      }
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "could not decode resource " + resId + ": " + e);
+      return null;
+    }
+  }
+
+  // The largest power of two that still leaves the image at least as big as the view.
+  static int sampleSize(int imageWidth, int imageHeight, int viewWidth, int viewHeight) {
+    int sampleSize = 1;
+    while (imageWidth / (sampleSize * 2) >= viewWidth && imageHeight / (sampleSize * 2) >= viewHeight) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /** Drops every cached size of the given drawable, e.g. when its screen is no longer shown. */
+  public void evict(@DrawableRes int resId) {
+    generation++;
+    String prefix = resId + "@";
+    for (String key : cache.snapshot().keySet()) {
+      if (key.startsWith(prefix)) cache.remove(key);
+    }
+  }
+
+  @Override
+  public boolean onTrim(@NonNull MemoryTrimPolicy.Tier tier) {
+    if (tier != MemoryTrimPolicy.Tier.CACHES) return false;
+    generation++;
+    cache.evictAll();
+    return true;
+  }
+}
@@ -0,0 +1,149 @@
+package com.truex.googlereferenceapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Time budget for an interactive ad to finish fetching its configuration. The budget adapts to a
+ * rolling history of observed fetch latencies, bounded by a configured minimum and maximum, so
+ * slow networks get more time and fast ones fall back sooner. Fetches that missed the deadline
+ * count as taking just longer than the budget, since their real latency is never seen, and the
+ * history is kept for the whole process so a new player starts from what earlier ones observed.
+ */
+public class InteractiveAdDeadline {
+  private static final String CLASSTAG = InteractiveAdDeadline.class.getSimpleName();
+
+  private static final int HISTORY_SIZE = 10;
+
+  // The budget is this multiple of the 90th percentile of the observed latencies.
+  private static final float LATENCY_HEADROOM = 1.5f;
+
+  // What an expired fetch is recorded as beyond the budget it missed.
+  private static final long CENSORED_MARGIN_MS = 1;
+
+  // Shared by every deadline in the process; only touched on the main thread.
+  private static final long[] latencyHistory = new long[HISTORY_SIZE];
+  private static int latencyCount;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private final long initialBudgetMs;
+  private final long minBudgetMs;
+  private final long maxBudgetMs;
+  private long budgetMs;
+
+  private Runnable onExpired;
+  // Start of the current running span, or -1 while suspended.
+  private long armedAt;
+  // Time spent running in earlier spans, i.e. before the last suspend.
+  private long elapsedMs;
+
+  private int armedCount;
+  private int expiredCount;
+
+  public InteractiveAdDeadline() {
+    this(8000, 3000, 15000);
+  }
+
+  public InteractiveAdDeadline(long initialBudgetMs, long minBudgetMs, long maxBudgetMs) {
+    this.initialBudgetMs = initialBudgetMs;
+    this.budgetMs = initialBudgetMs;
+    this.minBudgetMs = minBudgetMs;
+    this.maxBudgetMs = maxBudgetMs;
+  }
+
+  private final Runnable expire = () -> {
+    Runnable callback = onExpired;
+    onExpired = null;
+    expiredCount++;
+    Log.w(CLASSTAG, "interactive ad missed its " + budgetMs + "ms start deadline, "
+      + expiredCount + " of " + armedCount + " starts");
+    recordLatency(budgetMs + CENSORED_MARGIN_MS);
+    if (callback != null) callback.run();
+  };
+
+  /** Starts the clock; {@code onExpired} runs on the main thread if the deadline is missed. */
+  public void arm(Runnable onExpired) {
+    disarm();
+    this.onExpired = onExpired;
+    armedCount++;
+    budgetMs = budgetFromHistory();
+    armedAt = SystemClock.elapsedRealtime();
+    elapsedMs = 0;
+    handler.postDelayed(expire, budgetMs);
+  }
+
+  public boolean isArmed() {
+    return onExpired != null;
+  }
+
+  /** The ad made it in time: records the observed latency and stops the clock. */
+  public void met() {
+    if (!isArmed()) return;
+    long latency = runningMs();
+    disarm();
+    recordLatency(latency);
+  }
+
+  /** Stops the clock without recording anything, e.g. when the ad ends some other way. */
+  public void disarm() {
+    handler.removeCallbacks(expire);
+    onExpired = null;
+  }
+
+  /** Stops the clock while the app is paused, keeping the remaining budget. */
+  public void suspend() {
+    if (!isArmed() || armedAt < 0) return;
+    handler.removeCallbacks(expire);
+    elapsedMs = runningMs();
+    armedAt = -1;
+  }
+
+  public void resume() {
+    if (!isArmed() || armedAt >= 0) return;
+    armedAt = SystemClock.elapsedRealtime();
+    handler.postDelayed(expire, Math.max(0, budgetMs - elapsedMs));
+  }
+
+  // Time on the clock so far, leaving out any time spent suspended.
+  private long runningMs() {
+    return armedAt < 0 ? elapsedMs : elapsedMs + SystemClock.elapsedRealtime() - armedAt;
+  }
+
+  private static void recordLatency(long latencyMs) {
+    latencyHistory[latencyCount % HISTORY_SIZE] = latencyMs;
+    latencyCount++;
+    Log.i(CLASSTAG, "fetch latency " + latencyMs + "ms");
+  }
+
+  private long budgetFromHistory() {
+    int size = Math.min(latencyCount, HISTORY_SIZE);
+    if (size == 0) return initialBudgetMs;
+    long[] sorted = Arrays.copyOf(latencyHistory, size);
+    Arrays.sort(sorted);
+    long p90 = sorted[Math.min(size - 1, (int) (size * 0.9f))];
+    return Math.max(minBudgetMs, Math.min(maxBudgetMs, (long) (p90 * LATENCY_HEADROOM)));
+  }
+
+  /** The budget the next start will get. */
+  public long getBudgetMs() {
+    return isArmed() ? budgetMs : budgetFromHistory();
+  }
+
+  public int getArmedCount() {
+    return armedCount;
+  }
+
+  public int getExpiredCount() {
+    return expiredCount;
+  }
+
+  /** How often the deadline fired, out of all interactive ad starts. */
+  public float getExpiredRate() {
+    return armedCount == 0 ? 0 : (float) expiredCount / armedCount;
+  }
+}
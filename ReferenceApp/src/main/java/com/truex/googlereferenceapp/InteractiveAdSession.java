@@ -0,0 +1,189 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewGroup;
+
+import com.truex.adrenderer.TruexAdEvent;
+import com.truex.adrenderer.TruexAdOptions;
+import com.truex.adrenderer.TruexAdRenderer;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Runs an interactive ad with TruexAdRenderer over the paused player, for either playback engine.
+ * It warms up the popup browser, holds the ad to the interactive ad deadline, keeps track of an
+ * open popup and reports a credit. What happens to the rest of the pod when the ad ends is up to
+ * the engine.
+ */
+class InteractiveAdSession {
+  private static final String CLASSTAG = InteractiveAdSession.class.getSimpleName();
+
+  interface Listener {
+    /** The user earned the ad free pod; the ad ends later. */
+    void onCredit();
+
+    /** The ad ended by itself, on an error or past its deadline. */
+    void onEnded(boolean credit);
+  }
+
+  private final VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private final ViewGroup videoContainer;
+  private final PopupCallback popupCallback;
+
+  // Falls back to the linear ads if the interactive ad is too slow to start.
+  private InteractiveAdDeadline deadline = new InteractiveAdDeadline();
+
+  private TruexAdRenderer renderer;
+  private Listener listener;
+  private boolean credit;
+
+  // Set from an ad popup being opened until playback resumes; the user is expected back soon.
+  private volatile boolean popupOpen;
+
+  // Set by the session trace replayer: no renderer is run, its recorded events are fed instead.
+  private boolean replayMode;
+
+  InteractiveAdSession(VideoPlayerWithAdPlayback videoPlayerWithAdPlayback, ViewGroup videoContainer,
+                       PopupCallback popupCallback) {
+    this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
+    this.videoContainer = videoContainer;
+    this.popupCallback = popupCallback;
+  }
+
+  void setDeadline(InteractiveAdDeadline deadline) {
+    this.deadline = deadline;
+  }
+
+  InteractiveAdDeadline getDeadline() {
+    return deadline;
+  }
+
+  void setReplayMode(boolean replayMode) {
+    this.replayMode = replayMode;
+  }
+
+  /** Shows the interactive ad described by the ad's trafficking parameters over the player. */
+  void start(JSONObject params, AdType adType, Listener listener) {
+    stop();
+    this.listener = listener;
+    credit = false;
+    videoPlayerWithAdPlayback.disableControls();
+
+    // On some older 4K devices we need to actually hide the actual playback view so that truex videos can show.
+    videoPlayerWithAdPlayback.hidePlayer();
+    if (replayMode) return;
+
+    long setupStart = SystemClock.elapsedRealtime();
+    Context context = videoPlayerWithAdPlayback.getContext();
+    TruexAdRenderer renderer = new TruexAdRenderer(context);
+    this.renderer = renderer;
+
+    // Listen to all events, ignoring any that arrive after this renderer was abandoned.
+    renderer.addEventListener(null, (event, data) -> {
+      if (renderer == this.renderer) onTruexAdEvent(event, data);
+    });
+
+    TruexAdOptions options = new TruexAdOptions();
+    // IDVx ads don't support user cancel stream
+    options.supportsUserCancelStream = (adType == AdType.TRUEX);
+
+    // Lets the popup engine get ready, in case this ad opens one.
+    popupCallback.onInteractiveAdStarted();
+
+    String vastUrl = params.optString("vast_config_url");
+    if (vastUrl.isEmpty()) {
+      renderer.init(params, options);
+    } else {
+      renderer.init(vastUrl, options);
+    }
+
+    // Armed first, since the renderer can report its fetch from within start().
+    deadline.arm(this::onDeadlineExpired);
+    renderer.start(videoContainer);
+    RendererWarmup.get(context).recordInteractiveSetup(SystemClock.elapsedRealtime() - setupStart);
+  }
+
+  private void onDeadlineExpired() {
+    if (renderer == null) return;
+    // Abandon the interactive ad and go straight to the fallback ads.
+    credit = false;
+    end();
+  }
+
+  void onTruexAdEvent(TruexAdEvent event, Map<String, ?> data) {
+    Log.i(CLASSTAG, "onTruexAdEvent: " + event);
+    Object url = data == null ? null : data.get("url");
+    videoPlayerWithAdPlayback.getSessionTrace().record(
+      SessionTrace.Source.TRUEX, event.name(), 0, url == null ? null : url.toString());
+    switch (event) {
+      case AD_COMPLETED:
+      case AD_ERROR:
+      case NO_ADS_AVAILABLE:
+        end();
+        break;
+      case AD_FREE_POD:
+        credit = true;
+        if (listener != null) listener.onCredit();
+        break;
+      case POPUP_WEBSITE:
+        popupOpen = true;
+        popupCallback.onPopup((String) url);
+        break;
+      case AD_STARTED:
+        deadline.met();
+        videoPlayerWithAdPlayback.disableControls();
+        break;
+      case AD_FETCH_COMPLETED:
+        deadline.met();
+        break;
+
+      case USER_CANCEL:
+      case OPT_IN:
+      case OPT_OUT:
+      case SKIP_CARD_SHOWN:
+      default:
+        break;
+    }
+  }
+
+  private void end() {
+    Listener ended = listener;
+    stop();
+    videoPlayerWithAdPlayback.showPlayer();
+    if (ended != null) ended.onEnded(credit);
+  }
+
+  /** Abandons the ad without reporting its end, e.g. when the ads are torn down. */
+  void stop() {
+    deadline.disarm();
+    listener = null;
+    if (renderer != null) {
+      renderer.stop();
+      renderer = null;
+    }
+  }
+
+  void pause() {
+    deadline.suspend();
+    if (renderer != null) renderer.pause();
+  }
+
+  void resume() {
+    popupOpen = false;
+    deadline.resume();
+    if (renderer != null) renderer.resume();
+  }
+
+  /** Whether an interactive ad is showing, so the player under it must be kept. */
+  boolean isActive() {
+    return listener != null;
+  }
+
+  boolean isPopupOpen() {
+    return popupOpen;
+  }
+}
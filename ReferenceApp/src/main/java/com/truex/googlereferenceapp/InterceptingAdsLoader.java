@@ -0,0 +1,134 @@
+package com.truex.googlereferenceapp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.AdPlaybackState;
+import androidx.media3.common.AdViewProvider;
+import androidx.media3.common.C;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.exoplayer.source.ads.AdsLoader;
+import androidx.media3.exoplayer.source.ads.AdsMediaSource;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decorates an {@link AdsLoader} so the app can skip individual ads or whole ad groups on the
+ * player's timeline, e.g. after an interactive ad has been completed.
+ */
+@OptIn(markerClass = UnstableApi.class)
+class InterceptingAdsLoader implements AdsLoader {
+  private final AdsLoader delegate;
+
+  private final Set<Integer> skippedAdGroups = new HashSet<>();
+  private final Set<Long> skippedAds = new HashSet<>();
+
+  private EventListener eventListener;
+  private EventListener interceptingListener;
+  private AdPlaybackState lastAdPlaybackState;
+
+  InterceptingAdsLoader(AdsLoader delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Skips the rest of the given ad group. */
+  void skipAdGroup(int adGroupIndex) {
+    skippedAdGroups.add(adGroupIndex);
+    republish();
+  }
+
+  /** Skips a single ad, letting the rest of its group play. */
+  void skipAd(int adGroupIndex, int adIndexInAdGroup) {
+    skippedAds.add(((long) adGroupIndex << 32) | adIndexInAdGroup);
+    republish();
+  }
+
+  private void republish() {
+    if (eventListener != null && lastAdPlaybackState != null) {
+      eventListener.onAdPlaybackState(applySkips(lastAdPlaybackState));
+    }
+  }
+
+  private AdPlaybackState applySkips(AdPlaybackState state) {
+    for (int adGroupIndex : skippedAdGroups) {
+      if (adGroupIndex < state.adGroupCount) state = state.withSkippedAdGroup(adGroupIndex);
+    }
+    for (long key : skippedAds) {
+      int adGroupIndex = (int) (key >> 32);
+      int adIndexInAdGroup = (int) key;
+      if (adGroupIndex < state.adGroupCount) {
+        int count = state.getAdGroup(adGroupIndex).count;
+        if (count == C.LENGTH_UNSET || adIndexInAdGroup < count) {
+          state = state.withSkippedAd(adGroupIndex, adIndexInAdGroup);
+        }
+      }
+    }
+    return state;
+  }
+
+  @Override
+  public void setPlayer(@Nullable Player player) {
+    delegate.setPlayer(player);
+  }
+
+  @Override
+  public void release() {
+    delegate.release();
+  }
+
+  @Override
+  public void setSupportedContentTypes(@NonNull @C.ContentType int... contentTypes) {
+    delegate.setSupportedContentTypes(contentTypes);
+  }
+
+  @Override
+  public void start(@NonNull AdsMediaSource adsMediaSource, @NonNull DataSpec adTagDataSpec,
+                    @NonNull Object adsId, @NonNull AdViewProvider adViewProvider,
+                    @NonNull EventListener eventListener) {
+    this.eventListener = eventListener;
+    interceptingListener = new EventListener() {
+      @Override
+      public void onAdPlaybackState(@NonNull AdPlaybackState adPlaybackState) {
+        lastAdPlaybackState = adPlaybackState;
+        eventListener.onAdPlaybackState(applySkips(adPlaybackState));
+      }
+
+      @Override
+      public void onAdLoadError(@NonNull AdsMediaSource.AdLoadException error, @NonNull DataSpec dataSpec) {
+        eventListener.onAdLoadError(error, dataSpec);
+      }
+
+      @Override
+      public void onAdClicked() {
+        eventListener.onAdClicked();
+      }
+
+      @Override
+      public void onAdTapped() {
+        eventListener.onAdTapped();
+      }
+    };
+    delegate.start(adsMediaSource, adTagDataSpec, adsId, adViewProvider, interceptingListener);
+  }
+
+  @Override
+  public void stop(@NonNull AdsMediaSource adsMediaSource, @NonNull EventListener eventListener) {
+    delegate.stop(adsMediaSource, interceptingListener);
+    this.eventListener = null;
+  }
+
+  @Override
+  public void handlePrepareComplete(@NonNull AdsMediaSource adsMediaSource, int adGroupIndex, int adIndexInAdGroup) {
+    delegate.handlePrepareComplete(adsMediaSource, adGroupIndex, adIndexInAdGroup);
+  }
+
+  @Override
+  public void handlePrepareError(@NonNull AdsMediaSource adsMediaSource, int adGroupIndex,
+                                 int adIndexInAdGroup, @NonNull IOException exception) {
+    delegate.handlePrepareError(adsMediaSource, adGroupIndex, adIndexInAdGroup, exception);
+  }
+}
@@ -0,0 +1,397 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches each ad break's pod shortly before its cue point instead of handing IMA every break of
+ * the VMAP up front. Only the compiled {@link AdSchedule} is needed at session start; a break's
+ * VAST is fetched once content is within the lead time of its cue point, loaded into its own ads
+ * manager, and started when content reaches the cue point.
+ * <p>
+ * Breaks are handled one at a time, in schedule order. A break whose pod is not loaded within the
+ * late grace time after its cue point is missed and content carries on. Breaks a trueX credit
+ * already covers are skipped without being fetched. All state is kept on the main thread.
+ * <p>
+ * For live streams there is no schedule; breaks are added as their cues are found, see
+ * {@link LiveCueDetector}.
+ */
+public class JustInTimeAds {
+  private static final String CLASSTAG = JustInTimeAds.class.getSimpleName();
+
+  public static final long DEFAULT_LEAD_TIME_MS = 15000;
+  public static final long DEFAULT_LATE_GRACE_MS = 5000;
+
+  private static final long CHECK_INTERVAL_MS = 1000;
+
+  /** Supplies the VAST of one break, e.g. from an ad decision server. */
+  public interface PodSource {
+    // The duration to fill is -1 for a scheduled break, whose ads the schedule already decides.
+    @WorkerThread
+    String fetchPod(String breakId, long durationMs) throws IOException;
+  }
+
+  /** Receives the scheduler's decisions, on the main thread. */
+  interface Listener {
+    // The pod's VAST is ready to be requested from IMA; report back with onPodLoaded().
+    void onPodFetched(int breakIndex, String vast);
+    // Content reached the cue point of a loaded pod; report back with onBreakEnded().
+    void onBreakDue(int breakIndex);
+    // The pod failed or was too late; content should carry on without it.
+    void onBreakMissed(int breakIndex);
+    // A credited break was passed over without being fetched.
+    void onBreakSkipped(int breakIndex);
+  }
+
+  private enum State {
+    SCHEDULED, FETCHING, LOADING, READY, PLAYING, DONE, MISSED, SKIPPED
+  }
+
+  private static class Pod {
+    final String breakId;
+    // How long the break lasts; once content is past it the break is missed. -1 if it never ends.
+    final long durationMs;
+    State state = State.SCHEDULED;
+
+    Pod(String breakId, long durationMs) {
+      this.breakId = breakId;
+      this.durationMs = durationMs;
+    }
+  }
+
+  private final AdSchedule schedule;
+  private final PodSource podSource;
+  private final Executor executor;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private volatile long leadTimeMs = DEFAULT_LEAD_TIME_MS;
+  private volatile long lateGraceMs = DEFAULT_LATE_GRACE_MS;
+
+  private VideoPlayerWithAdPlayback player;
+  private CreditLedger creditLedger;
+  private Listener listener;
+  // The session's ad breaks, shared with the controller, and their pods at the same indices.
+  private final List<AdBreak> adBreaks = new ArrayList<>();
+  private final List<Pod> pods = new ArrayList<>();
+  private int activeIndex = -1;
+  // When content was first seen at or past the active break's cue point without its pod ready.
+  private long dueSince;
+  // Ignores fetches that complete after the session they were made for was stopped.
+  private int generation;
+  private boolean running;
+
+  private int fetched;
+  private int missed;
+  private int skipped;
+  private long totalFetchMs;
+  private long maxFetchMs;
+
+  private final Runnable checkTask = this::check;
+
+  /** For live streams, whose breaks are added as they are found. */
+  public JustInTimeAds(Context context, PodSource podSource) {
+    this(context, null, podSource);
+  }
+
+  public JustInTimeAds(Context context, AdSchedule schedule, PodSource podSource) {
+    this.schedule = schedule;
+    this.podSource = podSource;
+    this.executor = PlaybackInfrastructure.get(context).getWorkerExecutor();
+  }
+
+  /** How long before a break's cue point its pod is fetched. */
+  public void setLeadTimeMs(long leadTimeMs) {
+    this.leadTimeMs = leadTimeMs;
+  }
+
+  /** How long past its cue point a break still plays once its pod is loaded. */
+  public void setLateGraceMs(long lateGraceMs) {
+    this.lateGraceMs = lateGraceMs;
+  }
+
+  /**
+   * Starts scheduling the breaks for the given player and returns them, in schedule order, as the
+   * session's ad breaks.
+   */
+  List<AdBreak> start(VideoPlayerWithAdPlayback player, CreditLedger creditLedger, Listener listener) {
+    stop();
+    this.player = player;
+    this.creditLedger = creditLedger;
+    this.listener = listener;
+
+    adBreaks.clear();
+    pods.clear();
+    if (schedule != null) {
+      List<Float> cuePoints = new ArrayList<>();
+      for (AdSchedule.Break adBreak : schedule.getBreaks()) {
+        // The same cue points IMA reports: seconds, with -1 for the postroll.
+        cuePoints.add(adBreak.timeOffsetMs < 0 ? -1f : adBreak.timeOffsetMs / 1000f);
+        pods.add(new Pod(adBreak.id, -1));
+      }
+      adBreaks.addAll(AdBreak.createAdBreaks(cuePoints));
+    }
+    activeIndex = 0;
+    dueSince = 0;
+    running = true;
+    Log.i(CLASSTAG, "scheduling " + pods.size() + " breaks, lead time " + leadTimeMs + "ms");
+    check();
+    return adBreaks;
+  }
+
+  /**
+   * Adds a break found while playing, e.g. a live cue, after all the known ones. Its AdBreak's
+   * position may be updated as the content timeline moves.
+   */
+  AdBreak addBreak(String breakId, long contentPositionMs, long durationMs) {
+    AdBreak adBreak = new AdBreak();
+    adBreak.contentPosition = contentPositionMs;
+    adBreak.durationMs = Math.max(0, durationMs);
+    adBreaks.add(adBreak);
+    pods.add(new Pod(breakId, durationMs));
+    Log.i(CLASSTAG, "added break " + breakId + " at " + contentPositionMs + "ms for " + durationMs + "ms");
+    if (running) handler.post(checkTask);
+    return adBreak;
+  }
+
+  public void stop() {
+    handler.removeCallbacks(checkTask);
+    generation++;
+    running = false;
+    activeIndex = -1;
+  }
+
+  /** Holds the schedule while the app is paused, so a paused session does not miss its breaks. */
+  public void pause() {
+    handler.removeCallbacks(checkTask);
+  }
+
+  public void resume() {
+    if (!running) return;
+    dueSince = 0;
+    handler.removeCallbacks(checkTask);
+    handler.post(checkTask);
+  }
+
+  /** Whether the first break plays before any content. */
+  public boolean hasPreroll() {
+    if (schedule == null) return false;
+    List<AdSchedule.Break> breaks = schedule.getBreaks();
+    return !breaks.isEmpty() && breaks.get(0).timeOffsetMs == 0;
+  }
+
+  /** The break being fetched, loaded or played, or -1. */
+  public int getActiveBreakIndex() {
+    return running && activeIndex < pods.size() ? activeIndex : -1;
+  }
+
+  /** To be called when IMA loaded the pod given to {@link Listener#onPodFetched}. */
+  void onPodLoaded() {
+    if (!isActive(State.LOADING)) return;
+    pods.get(activeIndex).state = State.READY;
+    check();
+  }
+
+  /** To be called when IMA failed to load or play the active break. */
+  void onPodFailed() {
+    if (getActiveBreakIndex() < 0) return;
+    State state = pods.get(activeIndex).state;
+    if (state == State.LOADING || state == State.READY || state == State.PLAYING) miss();
+  }
+
+  /** To be called when the break started by {@link Listener#onBreakDue} is over. */
+  void onBreakEnded() {
+    if (!isActive(State.PLAYING)) return;
+    pods.get(activeIndex).state = State.DONE;
+    advance();
+  }
+
+  private boolean isActive(State state) {
+    return getActiveBreakIndex() >= 0 && pods.get(activeIndex).state == state;
+  }
+
+  private void check() {
+    handler.removeCallbacks(checkTask);
+    int index = getActiveBreakIndex();
+    if (index < 0) return;
+
+    long position = player.getContentPosition();
+    long cue = cuePosition(index);
+    boolean reached = cue >= 0 && position >= cue || adBreaks.get(index).contentPosition < 0 && player.isContentComplete();
+
+    Pod pod = pods.get(index);
+    switch (pod.state) {
+      case SCHEDULED:
+        if (creditLedger.isCovered(index)) {
+          skip();
+          return;
+        }
+        if (pod.durationMs > 0 && cue >= 0 && position > cue + pod.durationMs) {
+          // Joined or resumed after the whole break was over.
+          Log.w(CLASSTAG, "break " + pod.breakId + " already over");
+          miss();
+          return;
+        }
+        if (reached || cue >= 0 && cue - position <= leadTimeMs) fetch(index);
+        break;
+      case FETCHING:
+      case LOADING:
+        if (!reached) break;
+        long now = SystemClock.elapsedRealtime();
+        if (dueSince == 0) dueSince = now;
+        if (now - dueSince > lateGraceMs) {
+          Log.w(CLASSTAG, "break " + index + " not ready " + lateGraceMs + "ms after its cue point");
+          miss();
+          return;
+        }
+        break;
+      case READY:
+        if (!reached) break;
+        pod.state = State.PLAYING;
+        listener.onBreakDue(index);
+        return;
+      default:
+        // Playing; onBreakEnded() moves on.
+        return;
+    }
+    handler.postDelayed(checkTask, CHECK_INTERVAL_MS);
+  }
+
+  // The content position the break plays at, or -1 while a postroll's is not known yet.
+  private long cuePosition(int index) {
+    long position = adBreaks.get(index).contentPosition;
+    if (position >= 0) return position;
+    long duration = player.getContentDuration();
+    return duration > 0 ? duration : -1;
+  }
+
+  private void fetch(int index) {
+    Pod pod = pods.get(index);
+    pod.state = State.FETCHING;
+    int session = generation;
+    long start = SystemClock.elapsedRealtime();
+    executor.execute(() -> {
+      String vast;
+      try {
+        vast = podSource.fetchPod(pod.breakId, pod.durationMs);
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "fetch of break " + pod.breakId + " failed: " + e);
+        vast = null;
+      }
+      String result = vast;
+      handler.post(() -> onFetched(session, index, result, SystemClock.elapsedRealtime() - start));
+    });
+  }
+
+  private void onFetched(int session, int index, String vast, long fetchMs) {
+    if (session != generation || index != activeIndex || pods.get(index).state != State.FETCHING) return;
+    String breakId = pods.get(index).breakId;
+    player.getSessionTrace().record(SessionTrace.Source.SESSION, "podFetch", fetchMs, breakId);
+    if (vast == null || vast.isEmpty()) {
+      miss();
+      return;
+    }
+    fetched++;
+    totalFetchMs += fetchMs;
+    maxFetchMs = Math.max(maxFetchMs, fetchMs);
+    Log.i(CLASSTAG, "fetched break " + breakId + " in " + fetchMs + "ms");
+    pods.get(index).state = State.LOADING;
+    listener.onPodFetched(index, vast);
+  }
+
+  private void skip() {
+    int index = activeIndex;
+    pods.get(index).state = State.SKIPPED;
+    skipped++;
+    AdBreak adBreak = adBreaks.get(index);
+    adBreak.wasStarted = true;
+    creditLedger.onBreakSkipped(adBreak);
+    Log.i(CLASSTAG, "skipping credited break " + index);
+    listener.onBreakSkipped(index);
+    advance();
+  }
+
+  private void miss() {
+    int index = activeIndex;
+    pods.get(index).state = State.MISSED;
+    missed++;
+    adBreaks.get(index).wasStarted = true;
+    listener.onBreakMissed(index);
+    advance();
+  }
+
+  private void advance() {
+    activeIndex++;
+    dueSince = 0;
+    handler.post(checkTask);
+  }
+
+  @NonNull
+  public String report() {
+    return "breaks fetched " + fetched + ", missed " + missed + ", skipped " + skipped
+      + ", fetch mean " + (fetched == 0 ? 0 : totalFetchMs / fetched) + "ms, max " + maxFetchMs + "ms";
+  }
+
+  /**
+   * Reads one break's VAST from a VMAP resource per fetch, standing in for a per-break call to an
+   * ad decision server. A break given by an AdTagURI is fetched from that url.
+   */
+  public static class VmapPodSource implements PodSource {
+    private static final Pattern AD_TAG_URI = Pattern.compile(
+      "<vmap:AdTagURI[^>]*>\\s*(?:<!\\[CDATA\\[)?\\s*(\\S+?)\\s*(?:]]>)?\\s*</vmap:AdTagURI>");
+    private static final Pattern VAST = Pattern.compile("<VAST[\\s>].*?</VAST>", Pattern.DOTALL);
+
+    private final Context context;
+    private final int vmapResource;
+
+    public VmapPodSource(Context context, int vmapResource) {
+      this.context = context.getApplicationContext();
+      this.vmapResource = vmapResource;
+    }
+
+    @Override
+    public String fetchPod(String breakId, long durationMs) throws IOException {
+      String breakXml = findBreak(readVmap(), breakId);
+      if (breakXml == null) throw new IOException("No break " + breakId);
+
+      Matcher vast = VAST.matcher(breakXml);
+      if (vast.find()) return vast.group();
+
+      Matcher adTagUri = AD_TAG_URI.matcher(breakXml);
+      if (!adTagUri.find()) throw new IOException("No ad source for break " + breakId);
+      Request request = new Request.Builder().url(adTagUri.group(1)).build();
+      try (Response response = HttpStack.get().getClient().newCall(request).execute()) {
+        ResponseBody body = response.body();
+        if (!response.isSuccessful() || body == null) throw new IOException("HTTP " + response.code());
+        return body.string();
+      }
+    }
+
+    private static String findBreak(String vmap, String breakId) {
+      int start = vmap.indexOf("breakId=\"" + breakId + "\"");
+      if (start < 0) return null;
+      int end = vmap.indexOf("</vmap:AdBreak>", start);
+      return end < 0 ? null : vmap.substring(start, end);
+    }
+
+    private String readVmap() throws IOException {
+      return VideoFragment.readRawResource(context, vmapResource);
+    }
+  }
+}
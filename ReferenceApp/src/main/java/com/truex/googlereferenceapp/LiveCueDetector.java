@@ -0,0 +1,216 @@
+package com.truex.googlereferenceapp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.dash.manifest.EventStream;
+import androidx.media3.exoplayer.dash.manifest.Period;
+import androidx.media3.exoplayer.hls.HlsManifest;
+import androidx.media3.exoplayer.hls.playlist.HlsMediaPlaylist;
+import androidx.media3.extractor.metadata.emsg.EventMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds ad cues in a live stream each time its playlist or manifest refreshes, and schedules a
+ * {@link JustInTimeAds} break for every new one. HLS cues are EXT-X-DATERANGE tags with an
+ * SCTE35-OUT attribute and EXT-X-CUE-OUT tags; DASH cues are SCTE-35 event stream events with a
+ * duration. Cues normally show up a few segments ahead of the playback position, which leaves time
+ * to fetch the break's pod.
+ * <p>
+ * Cues are kept in wall clock time and mapped to the moving live window on every refresh, so only
+ * HLS playlists with program date times and DASH manifests with an availability start time are
+ * supported. Positions within a live period without either change whenever the stream is prepared
+ * again, e.g. after its player was released, so cues timed by them would land in the wrong place.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class LiveCueDetector implements Player.Listener {
+  private static final String CLASSTAG = LiveCueDetector.class.getSimpleName();
+
+  // Assumed when a cue does not say how long its break is.
+  public static final long DEFAULT_BREAK_DURATION_MS = 30000;
+
+  private static final Pattern ATTRIBUTE = Pattern.compile("([A-Z0-9-]+)=(\"[^\"]*\"|[^,]*)");
+
+  /** One ad cue, timed in the stream's timebase. */
+  static class Cue {
+    final String id;
+    final long streamTimeMs;
+    final long durationMs;
+
+    Cue(String id, long streamTimeMs, long durationMs) {
+      this.id = id;
+      this.streamTimeMs = streamTimeMs;
+      this.durationMs = durationMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return id + "@" + streamTimeMs + "+" + durationMs;
+    }
+  }
+
+  private final VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private final JustInTimeAds justInTimeAds;
+  private final Runnable onBreaksChanged;
+
+  private final Map<String, Cue> cues = new LinkedHashMap<>();
+  private final Map<String, AdBreak> adBreaks = new HashMap<>();
+  private final Timeline.Window window = new Timeline.Window();
+  private boolean started;
+
+  public LiveCueDetector(VideoPlayerWithAdPlayback videoPlayerWithAdPlayback, JustInTimeAds justInTimeAds,
+                         Runnable onBreaksChanged) {
+    this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
+    this.justInTimeAds = justInTimeAds;
+    this.onBreaksChanged = onBreaksChanged;
+  }
+
+  /** Starts watching the content's refreshes; the scheduler must have been started already. */
+  public void start() {
+    if (started) return;
+    started = true;
+    cues.clear();
+    adBreaks.clear();
+    videoPlayerWithAdPlayback.addPlayerListener(this);
+  }
+
+  public void stop() {
+    if (!started) return;
+    started = false;
+    videoPlayerWithAdPlayback.removePlayerListener(this);
+  }
+
+  @Override
+  public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+    // Ads are played by the same player; only the content's refreshes count.
+    ExoPlayer player = videoPlayerWithAdPlayback.getPlayer();
+    if (player == null || videoPlayerWithAdPlayback.isPlayingAd() || timeline.isEmpty()) return;
+    timeline.getWindow(player.getCurrentMediaItemIndex(), window);
+    // Without a wall clock time the stream has no cues that can be placed.
+    if (!window.isLive() || window.windowStartTimeMs == C.TIME_UNSET) return;
+
+    long windowStreamTimeMs = window.windowStartTimeMs;
+    Object manifest = player.getCurrentManifest();
+    List<Cue> found;
+    if (manifest instanceof HlsManifest) {
+      found = parseHls(((HlsManifest) manifest).mediaPlaylist);
+    } else if (manifest instanceof DashManifest) {
+      found = parseDash((DashManifest) manifest);
+    } else {
+      return;
+    }
+    found.sort((a, b) -> Long.compare(a.streamTimeMs, b.streamTimeMs));
+
+    for (Cue cue : found) {
+      if (cues.containsKey(cue.id)) continue;
+      cues.put(cue.id, cue);
+      Log.i(CLASSTAG, "cue " + cue);
+    }
+    // Breaks are mapped to the window as it is now; those that slid out of it sit at its start.
+    for (Cue cue : cues.values()) {
+      long position = Math.max(0, cue.streamTimeMs - windowStreamTimeMs);
+      AdBreak adBreak = adBreaks.get(cue.id);
+      if (adBreak == null) {
+        adBreaks.put(cue.id, justInTimeAds.addBreak("live-" + cue.id, position, cue.durationMs));
+      } else {
+        adBreak.contentPosition = position;
+      }
+    }
+    if (!cues.isEmpty()) onBreaksChanged.run();
+  }
+
+  /**
+   * Finds the cues in an HLS media playlist, none if it has no program date times. Depends on
+   * nothing but the playlist, so playlist fixtures can be checked directly.
+   */
+  static List<Cue> parseHls(HlsMediaPlaylist playlist) {
+    List<Cue> found = new ArrayList<>();
+    if (!playlist.hasProgramDateTime) return found;
+    // The start time is the first segment's program date time.
+    long playlistStreamTimeMs = Util.usToMs(playlist.startTimeUs);
+    int segmentIndex = 0;
+    for (String tag : playlist.tags) {
+      if (tag.startsWith("#EXTINF")) {
+        segmentIndex++;
+      } else if (tag.startsWith("#EXT-X-CUE-OUT") && !tag.startsWith("#EXT-X-CUE-OUT-CONT")) {
+        // The break starts with the next segment, which may not be listed yet.
+        if (segmentIndex >= playlist.segments.size()) continue;
+        HlsMediaPlaylist.Segment segment = playlist.segments.get(segmentIndex);
+        String value = tag.indexOf(':') < 0 ? "" : tag.substring(tag.indexOf(':') + 1);
+        if (value.startsWith("DURATION=")) value = value.substring("DURATION=".length());
+        found.add(new Cue("seq" + (playlist.mediaSequence + segmentIndex),
+          playlistStreamTimeMs + Util.usToMs(segment.relativeStartTimeUs), parseSeconds(value)));
+      } else if (tag.startsWith("#EXT-X-DATERANGE:")) {
+        Map<String, String> attributes = parseAttributes(tag.substring(tag.indexOf(':') + 1));
+        String id = attributes.get("ID");
+        String startDate = attributes.get("START-DATE");
+        if (id == null || startDate == null || !attributes.containsKey("SCTE35-OUT")) continue;
+        String duration = attributes.get("DURATION");
+        if (duration == null) duration = attributes.get("PLANNED-DURATION");
+        try {
+          found.add(new Cue(id, Util.parseXsDateTime(startDate), parseSeconds(duration)));
+        } catch (Exception e) {
+          Log.w(CLASSTAG, "bad DATERANGE " + tag + ": " + e);
+        }
+      }
+    }
+    return found;
+  }
+
+  /** Finds the SCTE-35 events with a duration, i.e. break starts, in a live DASH manifest. */
+  static List<Cue> parseDash(DashManifest manifest) {
+    List<Cue> found = new ArrayList<>();
+    if (manifest.availabilityStartTimeMs == C.TIME_UNSET) return found;
+    for (int i = 0; i < manifest.getPeriodCount(); i++) {
+      Period period = manifest.getPeriod(i);
+      for (EventStream eventStream : period.eventStreams) {
+        if (!eventStream.schemeIdUri.startsWith("urn:scte:scte35")) continue;
+        for (int j = 0; j < eventStream.events.length; j++) {
+          EventMessage event = eventStream.events[j];
+          // Break ends are signalled as events too, without a duration.
+          if (event.durationMs == C.TIME_UNSET || event.durationMs <= 0) continue;
+          long streamTimeMs = manifest.availabilityStartTimeMs + period.startMs
+            + Util.usToMs(eventStream.presentationTimesUs[j]);
+          found.add(new Cue(period.id + ":" + event.id, streamTimeMs, event.durationMs));
+        }
+      }
+    }
+    return found;
+  }
+
+  private static Map<String, String> parseAttributes(String list) {
+    Map<String, String> attributes = new HashMap<>();
+    Matcher matcher = ATTRIBUTE.matcher(list);
+    while (matcher.find()) {
+      String value = matcher.group(2);
+      if (value.startsWith("\"")) value = value.substring(1, value.length() - 1);
+      attributes.put(matcher.group(1), value);
+    }
+    return attributes;
+  }
+
+  private static long parseSeconds(String value) {
+    if (value == null || value.isEmpty()) return DEFAULT_BREAK_DURATION_MS;
+    try {
+      return (long) (Double.parseDouble(value.trim()) * 1000);
+    } catch (NumberFormatException e) {
+      return DEFAULT_BREAK_DURATION_MS;
+    }
+  }
+}
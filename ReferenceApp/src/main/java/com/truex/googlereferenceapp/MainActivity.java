@@ -1,5 +1,6 @@
 package com.truex.googlereferenceapp;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Window;
@@ -7,15 +8,8 @@ import android.view.WindowManager;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 public class MainActivity extends AppCompatActivity {
     private static final String CLASSTAG = "MainActivity";
@@ -23,7 +17,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         Log.d(CLASSTAG, "onCreate");
+        // Synchronous, so that no stage or screen opens an https connection with the default checks.
         disableSSLCertificateChecking();
+        startInitializer();
 
         super.onCreate(savedInstanceState);
         requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -33,6 +29,27 @@ public class MainActivity extends AppCompatActivity {
         loadDetailFragment();
     }
 
+    // Setup that used to run here synchronously now runs in parallel while the UI inflates.
+    private void startInitializer() {
+        Context appContext = getApplicationContext();
+        String language = getString(R.string.ad_ui_lang);
+        new StartupInitializer()
+                .addStage("http", false, HttpStack::get)
+                .addStage("capabilities", false, () -> DeviceCapabilities.get(appContext))
+                .addStage("infrastructure", false, () -> PlaybackInfrastructure.get(appContext), "capabilities")
+                .addStage("imaSettings", false,
+                        () -> PlaybackInfrastructure.get(appContext).getImaSdkSettings(language), "infrastructure")
+                .addStage("player", false, () -> VideoPlayerWithAdPlayback.prebuildPlayer(appContext), "infrastructure")
+                .addStage("ready", true, this::onStartupComplete, "http", "imaSettings", "player")
+                .start();
+    }
+
+    // Marks the app fully usable, i.e. cold start to first interactive frame.
+    private void onStartupComplete() {
+        if (isFinishing() || isDestroyed()) return;
+        reportFullyDrawn();
+    }
+
     private void loadDetailFragment() {
         getSupportFragmentManager().beginTransaction()
                 .add(R.id.activity_main, new HomePageFragment())
@@ -41,30 +58,9 @@ public class MainActivity extends AppCompatActivity {
 
     // Useful for working with older, expired https assets that are difficult for us to update.
     private static void disableSSLCertificateChecking() {
-        TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
-            }
-
-            @Override
-            public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-                // Not implemented
-            }
-
-            @Override
-            public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-                // Not implemented
-            }
-        } };
-
-        try {
-            SSLContext sc = SSLContext.getInstance("TLS");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
+        SSLContext sc = TrustAll.createSslContext();
+        if (sc != null) {
             HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-        } catch (KeyManagementException e) {
-            Log.e(CLASSTAG, e.toString());
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(CLASSTAG, e.toString());
         }
     }
 }
\ No newline at end of file
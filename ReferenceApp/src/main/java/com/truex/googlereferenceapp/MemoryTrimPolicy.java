@@ -0,0 +1,187 @@
+package com.truex.googlereferenceapp;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the system's memory pressure signals onto tiered resource release. Components register as
+ * {@link Trimmable}s and are asked to give up progressively more expensive resources as pressure
+ * rises, lowest tier first.
+ */
+public class MemoryTrimPolicy implements ComponentCallbacks2 {
+  private static final String CLASSTAG = MemoryTrimPolicy.class.getSimpleName();
+
+  public enum Tier {
+    CACHES,         // media caches and prefetched buffers, cheap to rebuild
+    IDLE_RENDERERS, // renderers and pre-warmed objects that are not currently on screen
+    PLAYER          // the player itself, keeping just enough state to restore quickly
+  }
+
+  public interface Trimmable {
+    /**
+     * Release whatever is held for the given tier, lowest tier first. Returns whether anything was
+     * released; a tier that was not is asked for again on the next trim.
+     */
+    boolean onTrim(@NonNull Tier tier);
+  }
+
+  /** Hooks for measuring what each trim took and recovered, and what it cost to come back from it. */
+  public interface Listener {
+    void onTrimmed(@NonNull Tier tier, long durationMs);
+
+    /**
+     * What the heaps shrank by from before a trim to after the collector ran, reported for the
+     * deepest tier applied. Codec and WebView buffers are native, so most of a trim shows there.
+     */
+    void onRecovered(@NonNull Tier tier, long javaBytesRecovered, long nativeBytesRecovered);
+
+    void onResumed(@NonNull Tier deepestTier, long resumeCostMs);
+  }
+
+  // Released objects are only reclaimed by a collection, and native buffers are freed by their
+  // finalizers or release threads, so the heaps are sampled again a little later.
+  private static final long RECOVERY_SAMPLE_DELAY_MS = 2000;
+
+  // The tiers each trimmable released since the last resume.
+  private final Map<Trimmable, EnumSet<Tier>> trimmables = new LinkedHashMap<>();
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private Listener listener;
+
+  // The deepest tier applied since the last resume, or null if nothing has been trimmed.
+  private Tier trimmedTier;
+
+  // The heaps before the trims whose recovery is still to be sampled, and the deepest of them.
+  private Tier sampledTier;
+  private long javaBytesBefore;
+  private long nativeBytesBefore;
+  private final Runnable sampleRecovery = this::sampleRecovery;
+
+  public void addTrimmable(Trimmable trimmable) {
+    trimmables.put(trimmable, EnumSet.noneOf(Tier.class));
+  }
+
+  public void removeTrimmable(Trimmable trimmable) {
+    trimmables.remove(trimmable);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  public Tier getTrimmedTier() {
+    return trimmedTier;
+  }
+
+  static Tier tierForLevel(int level) {
+    if (level >= TRIM_MEMORY_BACKGROUND) return Tier.PLAYER;
+    if (level >= TRIM_MEMORY_RUNNING_LOW) return Tier.IDLE_RENDERERS;
+    if (level >= TRIM_MEMORY_RUNNING_MODERATE) return Tier.CACHES;
+    return null;
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    Log.i(CLASSTAG, "onTrimMemory: " + level);
+    trimTo(tierForLevel(level));
+  }
+
+  @Override
+  public void onLowMemory() {
+    Log.i(CLASSTAG, "onLowMemory");
+    trimTo(Tier.PLAYER);
+  }
+
+  @Override
+  public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    // not relevant
+  }
+
+  /**
+   * Asks every trimmable for each tier up to and including the given one that it has not released
+   * yet, e.g. because it was playing the last time.
+   */
+  public void trimTo(Tier tier) {
+    if (tier == null) return;
+    if (listener != null && sampledTier == null) {
+      // Both samples follow a collection, so garbage left from before the trim is not counted.
+      Runtime.getRuntime().gc();
+      javaBytesBefore = javaHeapUsed();
+      nativeBytesBefore = Debug.getNativeHeapAllocatedSize();
+    }
+    Tier deepestApplied = null;
+    for (int i = 0; i <= tier.ordinal(); i++) {
+      if (applyTier(Tier.values()[i])) deepestApplied = Tier.values()[i];
+    }
+    if (deepestApplied == null) return;
+    if (trimmedTier == null || deepestApplied.compareTo(trimmedTier) > 0) trimmedTier = deepestApplied;
+    if (listener != null) {
+      if (sampledTier == null || deepestApplied.compareTo(sampledTier) > 0) sampledTier = deepestApplied;
+      handler.removeCallbacks(sampleRecovery);
+      handler.postDelayed(sampleRecovery, RECOVERY_SAMPLE_DELAY_MS);
+    }
+  }
+
+  // Whether any trimmable released something for the tier.
+  private boolean applyTier(Tier tier) {
+    long start = SystemClock.elapsedRealtime();
+    boolean applied = false;
+
+    for (Map.Entry<Trimmable, EnumSet<Tier>> entry : new ArrayList<>(trimmables.entrySet())) {
+      if (entry.getValue().contains(tier)) continue;
+      if (entry.getKey().onTrim(tier)) {
+        entry.getValue().add(tier);
+        applied = true;
+      }
+    }
+    if (!applied) return false;
+
+    long durationMs = SystemClock.elapsedRealtime() - start;
+    Log.i(CLASSTAG, "trimmed " + tier + " in " + durationMs + "ms");
+    if (listener != null) {
+      listener.onTrimmed(tier, durationMs);
+    }
+    return true;
+  }
+
+  private void sampleRecovery() {
+    Tier tier = sampledTier;
+    sampledTier = null;
+    if (tier == null || listener == null) return;
+    Runtime.getRuntime().gc();
+    long javaRecovered = javaBytesBefore - javaHeapUsed();
+    long nativeRecovered = nativeBytesBefore - Debug.getNativeHeapAllocatedSize();
+    Log.i(CLASSTAG, "recovered by " + tier + ": java " + javaRecovered + " native " + nativeRecovered);
+    listener.onRecovered(tier, javaRecovered, nativeRecovered);
+  }
+
+  private static long javaHeapUsed() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * To be called once the trimmed components have been brought back, with the time that took.
+   * Clears the trimmed state.
+   */
+  public void onResumed(long resumeCostMs) {
+    if (trimmedTier == null) return;
+    Log.i(CLASSTAG, "resumed from " + trimmedTier + " in " + resumeCostMs + "ms");
+    if (listener != null) {
+      listener.onResumed(trimmedTier, resumeCostMs);
+    }
+    trimmedTier = null;
+    for (EnumSet<Tier> applied : trimmables.values()) applied.clear();
+  }
+}
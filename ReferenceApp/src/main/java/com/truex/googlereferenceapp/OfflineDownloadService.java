@@ -0,0 +1,45 @@
+package com.truex.googlereferenceapp;
+
+import android.app.Notification;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.offline.Download;
+import androidx.media3.exoplayer.offline.DownloadManager;
+import androidx.media3.exoplayer.offline.DownloadService;
+import androidx.media3.exoplayer.scheduler.Scheduler;
+
+import java.util.List;
+
+/** Runs the offline downloads of {@link OfflineDownloads} in the background. */
+@OptIn(markerClass = UnstableApi.class)
+public class OfflineDownloadService extends DownloadService {
+  private static final int FOREGROUND_NOTIFICATION_ID = 1;
+
+  public OfflineDownloadService() {
+    super(FOREGROUND_NOTIFICATION_ID, DEFAULT_FOREGROUND_NOTIFICATION_UPDATE_INTERVAL,
+      OfflineDownloads.NOTIFICATION_CHANNEL_ID, R.string.download_channel_name, 0);
+  }
+
+  @NonNull
+  @Override
+  protected DownloadManager getDownloadManager() {
+    return OfflineDownloads.get(this).getDownloadManager();
+  }
+
+  @Nullable
+  @Override
+  protected Scheduler getScheduler() {
+    // Downloads resume when the app next starts the service.
+    return null;
+  }
+
+  @NonNull
+  @Override
+  protected Notification getForegroundNotification(@NonNull List<Download> downloads, int notMetRequirements) {
+    return OfflineDownloads.get(this).getNotificationHelper().buildProgressNotification(
+      this, R.drawable.ic_launcher, null, null, downloads, notMetRequirements);
+  }
+}
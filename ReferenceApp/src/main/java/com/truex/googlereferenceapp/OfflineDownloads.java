@@ -0,0 +1,239 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.offline.Download;
+import androidx.media3.exoplayer.offline.DownloadCursor;
+import androidx.media3.exoplayer.offline.DownloadManager;
+import androidx.media3.exoplayer.offline.DownloadNotificationHelper;
+import androidx.media3.exoplayer.offline.DownloadRequest;
+import androidx.media3.exoplayer.offline.DownloadService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a content item together with every linear creative its ad schedule refers to, so that
+ * playback can run without network access. Downloads run in {@link OfflineDownloadService}, resume
+ * after interruptions, are bandwidth limited, and are kept within a storage quota by evicting the
+ * least recently downloaded items.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class OfflineDownloads implements DownloadManager.Listener {
+  private static final String CLASSTAG = OfflineDownloads.class.getSimpleName();
+
+  static final String NOTIFICATION_CHANNEL_ID = "downloads";
+
+  // The id the sample content is downloaded under.
+  static final String SAMPLE_ITEM_ID = "sample";
+
+  private static final long BANDWIDTH_LIMIT_BYTES_PER_SECOND = 512 * 1024;
+  private static final long STORAGE_QUOTA_BYTES = 1024L * 1024 * 1024;
+
+  private static final Pattern VAST_MEDIA_FILE = Pattern.compile(
+    "<MediaFile[^>]*>\\s*(?:<!\\[CDATA\\[)?\\s*(https?://[^\\]<\\s]+)");
+
+  private static OfflineDownloads instance;
+
+  private final Context appContext;
+  private final DownloadManager downloadManager;
+  private final DownloadNotificationHelper notificationHelper;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /**
+   * Whether the media of each break of a downloaded item is local. Interactive ads and wrappers
+   * always need the network, so their breaks are not playable offline. Even a fully playable item
+   * still needs the network for IMA itself, which loads its SDK and ad rules online.
+   */
+  public static class Report {
+    public boolean contentAvailable;
+    public final List<String> unplayableBreaks = new ArrayList<>();
+    // Ads that need the network: interactive ads fetch their experience, wrappers their VASTAdTagURI.
+    public final List<String> networkAds = new ArrayList<>();
+
+    public boolean isPlayableOffline() {
+      return contentAvailable && unplayableBreaks.isEmpty();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return "content " + (contentAvailable ? "downloaded" : "missing") + ", unplayable breaks "
+        + unplayableBreaks + ", ads needing the network " + networkAds;
+    }
+  }
+
+  public static synchronized OfflineDownloads get(Context context) {
+    if (instance == null) {
+      instance = new OfflineDownloads(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private OfflineDownloads(Context appContext) {
+    this.appContext = appContext;
+    PlaybackInfrastructure infrastructure = PlaybackInfrastructure.get(appContext);
+    downloadManager = new DownloadManager(appContext, infrastructure.getDatabaseProvider(),
+      infrastructure.getDownloadCache(),
+      new ThrottledDataSource.Factory(HttpStack.get().createDataSourceFactory(appContext),
+        BANDWIDTH_LIMIT_BYTES_PER_SECOND),
+      Executors.newSingleThreadExecutor());
+    downloadManager.setMaxParallelDownloads(2);
+    downloadManager.addListener(this);
+    notificationHelper = new DownloadNotificationHelper(appContext, NOTIFICATION_CHANNEL_ID);
+  }
+
+  public DownloadManager getDownloadManager() {
+    return downloadManager;
+  }
+
+  public DownloadNotificationHelper getNotificationHelper() {
+    return notificationHelper;
+  }
+
+  /**
+   * Queues the content and the media of every linear ad in the schedule for download. Wrapper ads
+   * are resolved over the network first, so this runs on the shared worker executor.
+   */
+  public void downloadItem(String itemId, String contentUrl, AdSchedule schedule) {
+    PlaybackInfrastructure.get(appContext).getWorkerExecutor().execute(() -> {
+      Set<String> urls = new LinkedHashSet<>();
+      urls.add(contentUrl);
+      for (AdSchedule.Break adBreak : schedule.getBreaks()) {
+        for (AdSchedule.Ad ad : adBreak.ads) {
+          String mediaUrl = ad.isWrapper ? resolveWrapperMedia(ad.vastAdTagUri) : chooseMedia(ad);
+          if (mediaUrl != null) urls.add(mediaUrl);
+        }
+      }
+      byte[] data = itemId.getBytes(StandardCharsets.UTF_8);
+      for (String url : urls) {
+        DownloadRequest request = new DownloadRequest.Builder(url, Uri.parse(url)).setData(data).build();
+        DownloadService.sendAddDownload(appContext, OfflineDownloadService.class, request, false);
+      }
+      Log.i(CLASSTAG, "queued " + urls.size() + " downloads for " + itemId);
+    });
+  }
+
+  @Nullable
+  private static String chooseMedia(AdSchedule.Ad ad) {
+    for (AdSchedule.MediaFile mediaFile : ad.mediaFiles) {
+      if ("video/mp4".equals(mediaFile.type)) return mediaFile.url;
+    }
+    return ad.mediaFiles.isEmpty() ? null : ad.mediaFiles.get(0).url;
+  }
+
+  @WorkerThread
+  @Nullable
+  private static String resolveWrapperMedia(String vastAdTagUri) {
+    Request request = new Request.Builder().url(vastAdTagUri).build();
+    try (Response response = HttpStack.get().getClient().newCall(request).execute()) {
+      ResponseBody body = response.body();
+      if (!response.isSuccessful() || body == null) return null;
+      Matcher matcher = VAST_MEDIA_FILE.matcher(body.string());
+      return matcher.find() ? matcher.group(1) : null;
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "could not resolve wrapper " + vastAdTagUri + ": " + e);
+      return null;
+    }
+  }
+
+  private boolean isDownloaded(String url) throws IOException {
+    Download download = downloadManager.getDownloadIndex().getDownload(url);
+    return download != null && download.state == Download.STATE_COMPLETED;
+  }
+
+  /**
+   * Checks that the content and every ad break can play from local storage. A break is playable if
+   * all of its ads are inline linear ads that are downloaded; one with an interactive or wrapper ad
+   * is not, and those ads are listed as needing the network.
+   */
+  @WorkerThread
+  public Report verify(String contentUrl, AdSchedule schedule) throws IOException {
+    Report report = new Report();
+    report.contentAvailable = isDownloaded(contentUrl);
+    for (AdSchedule.Break adBreak : schedule.getBreaks()) {
+      boolean playable = true;
+      for (AdSchedule.Ad ad : adBreak.ads) {
+        if (ad.isWrapper || ad.isInteractive()) {
+          report.networkAds.add(adBreak.id + "/" + ad.id);
+          playable = false;
+          continue;
+        }
+        String mediaUrl = chooseMedia(ad);
+        if (mediaUrl == null || !isDownloaded(mediaUrl)) playable = false;
+      }
+      if (!playable) report.unplayableBreaks.add(adBreak.id);
+    }
+    return report;
+  }
+
+  @Override
+  public void onDownloadChanged(@NonNull DownloadManager downloadManager, @NonNull Download download,
+                                @Nullable Exception finalException) {
+    if (download.state == Download.STATE_COMPLETED) {
+      PlaybackInfrastructure.get(appContext).getWorkerExecutor().execute(this::enforceQuota);
+    } else if (download.state == Download.STATE_FAILED) {
+      Log.w(CLASSTAG, "download failed: " + download.request.id + ": " + finalException);
+    }
+  }
+
+  // Evicts whole items, least recently downloaded first, until the completed downloads fit.
+  @WorkerThread
+  private void enforceQuota() {
+    Map<String, Long> itemBytes = new HashMap<>();
+    Map<String, Long> itemUpdateTimes = new HashMap<>();
+    Map<String, List<String>> itemDownloads = new HashMap<>();
+    long totalBytes = 0;
+    try (DownloadCursor cursor = downloadManager.getDownloadIndex().getDownloads(Download.STATE_COMPLETED)) {
+      while (cursor.moveToNext()) {
+        Download download = cursor.getDownload();
+        String itemId = new String(download.request.data, StandardCharsets.UTF_8);
+        long bytes = download.getBytesDownloaded();
+        totalBytes += bytes;
+        itemBytes.merge(itemId, bytes, Long::sum);
+        itemUpdateTimes.merge(itemId, download.updateTimeMs, Math::max);
+        itemDownloads.computeIfAbsent(itemId, id -> new ArrayList<>()).add(download.request.id);
+      }
+    } catch (IOException e) {
+      Log.w(CLASSTAG, "quota check failed: " + e);
+      return;
+    }
+
+    while (totalBytes > STORAGE_QUOTA_BYTES && itemBytes.size() > 1) {
+      String oldest = null;
+      for (String itemId : itemUpdateTimes.keySet()) {
+        if (oldest == null || itemUpdateTimes.get(itemId) < itemUpdateTimes.get(oldest)) oldest = itemId;
+      }
+      totalBytes -= itemBytes.remove(oldest);
+      itemUpdateTimes.remove(oldest);
+      List<String> ids = itemDownloads.remove(oldest);
+      Log.i(CLASSTAG, "evicting offline item " + oldest + " to stay within the storage quota");
+      // The download manager must be used from the thread it was created on.
+      handler.post(() -> {
+        for (String id : ids) downloadManager.removeDownload(id);
+      });
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+import androidx.media3.exoplayer.source.LoadEventInfo;
+import androidx.media3.exoplayer.source.MediaLoadData;
+
+/**
+ * An on-screen overlay of live playback numbers for debugging on devices without adb: buffer
+ * health, bitrate, dropped frames, decoders, the ad being played, the cache hit rate and the most
+ * recent ad transition latencies.
+ * <p>
+ * The HUD is cheap enough not to skew what it shows: it refreshes twice a second and formats
+ * into pre-allocated character buffers that are drawn directly, rather than building strings.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class PerformanceHud extends View implements AnalyticsListener {
+  private static final long UPDATE_INTERVAL_MS = 500;
+  private static final int LINES = 7;
+  private static final int LINE_CAPACITY = 96;
+  private static final int RECENT_TRANSITIONS = 3;
+
+  private final VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint backgroundPaint = new Paint();
+  private final char[][] lines = new char[LINES][LINE_CAPACITY];
+  private final int[] lineLengths = new int[LINES];
+  private final float lineHeight;
+  private final float padding;
+
+  // Written by the analytics callbacks; strings are kept as given, not copied.
+  private String videoDecoder = "-";
+  private String audioDecoder = "-";
+  private int droppedFrames;
+  private long bytesLoaded;
+  private long startBytesLoaded;
+  private long startCachedBytes;
+
+  private boolean running;
+
+  private final Runnable updateTask = new Runnable() {
+    @Override
+    public void run() {
+      if (!running) return;
+      update();
+      postDelayed(this, UPDATE_INTERVAL_MS);
+    }
+  };
+
+  public PerformanceHud(Context context, VideoPlayerWithAdPlayback videoPlayerWithAdPlayback) {
+    super(context);
+    this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
+    float density = context.getResources().getDisplayMetrics().density;
+    textPaint.setColor(Color.WHITE);
+    textPaint.setTypeface(Typeface.MONOSPACE);
+    textPaint.setTextSize(11 * density);
+    backgroundPaint.setColor(0x99000000);
+    lineHeight = textPaint.getFontSpacing();
+    padding = 6 * density;
+    setWillNotDraw(false);
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    running = true;
+    startBytesLoaded = bytesLoaded;
+    startCachedBytes = PlaybackInfrastructure.get(getContext()).getCachedBytesRead();
+    post(updateTask);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    running = false;
+    removeCallbacks(updateTask);
+    super.onDetachedFromWindow();
+  }
+
+  private void update() {
+    ExoPlayer player = videoPlayerWithAdPlayback.getPlayer();
+
+    int line = 0;
+    int n = put(line, 0, "buffer ");
+    n = putLong(line, n, player == null ? 0 : player.getTotalBufferedDuration());
+    n = put(line, n, "ms");
+    lineLengths[line++] = n;
+
+    Format format = player == null ? null : player.getVideoFormat();
+    n = put(line, 0, "video ");
+    if (format != null) {
+      n = putLong(line, n, format.height);
+      n = put(line, n, "p ");
+      n = putLong(line, n, format.bitrate == Format.NO_VALUE ? 0 : format.bitrate / 1000);
+      n = put(line, n, "kbps");
+    } else {
+      n = put(line, n, "-");
+    }
+    n = put(line, n, " dropped ");
+    n = putLong(line, n, droppedFrames);
+    lineLengths[line++] = n;
+
+    n = put(line, 0, "decoders ");
+    n = put(line, n, videoDecoder);
+    n = put(line, n, " ");
+    n = put(line, n, audioDecoder);
+    lineLengths[line++] = n;
+
+    n = put(line, 0, "ad ");
+    if (videoPlayerWithAdPlayback.isPlayingAd()) {
+      n = put(line, n, "playing pod ");
+      n = putLong(line, n, videoPlayerWithAdPlayback.getAdPodIndex());
+      n = put(line, n, " at ");
+      n = putLong(line, n, player == null ? 0 : player.getCurrentPosition());
+      n = put(line, n, "ms");
+    } else {
+      n = put(line, n, "none, content at ");
+      n = putLong(line, n, player == null ? 0 : videoPlayerWithAdPlayback.getContentPosition());
+      n = put(line, n, "ms");
+    }
+    lineLengths[line++] = n;
+
+    long loaded = bytesLoaded - startBytesLoaded;
+    long cached = PlaybackInfrastructure.get(getContext()).getCachedBytesRead() - startCachedBytes;
+    n = put(line, 0, "cache hit ");
+    n = putLong(line, n, loaded <= 0 ? 0 : Math.min(100, cached * 100 / loaded));
+    n = put(line, n, "% of ");
+    n = putLong(line, n, loaded / 1024);
+    n = put(line, n, "KB");
+    lineLengths[line++] = n;
+
+    // A segment's startup is the time from its transition to its first frame.
+    n = put(line, 0, "ad starts ");
+    n = putRecentStartups(line, n, true);
+    lineLengths[line++] = n;
+    n = put(line, 0, "resumes ");
+    n = putRecentStartups(line, n, false);
+    lineLengths[line++] = n;
+
+    invalidate();
+  }
+
+  private int putRecentStartups(int line, int n, boolean ads) {
+    QoeCollector qoeCollector = videoPlayerWithAdPlayback.getQoeCollector();
+    int size = ads ? qoeCollector.getAdSegmentCount() : qoeCollector.getContentSegmentCount();
+    if (size == 0) return put(line, n, "-");
+    for (int i = Math.max(0, size - RECENT_TRANSITIONS); i < size; i++) {
+      QoeCollector.Aggregate segment = ads ? qoeCollector.getAdSegment(i) : qoeCollector.getContentSegment(i);
+      // A queued ad played on gaplessly and had no startup to measure.
+      if (segment.isGapless()) {
+        n = put(line, n, "gapless ");
+        continue;
+      }
+      n = putLong(line, n, segment.getStartupMs());
+      n = put(line, n, "ms ");
+    }
+    return n;
+  }
+
+  private int put(int line, int n, String text) {
+    char[] buffer = lines[line];
+    int count = Math.min(text.length(), LINE_CAPACITY - n);
+    text.getChars(0, count, buffer, n);
+    return n + count;
+  }
+
+  // Writes the digits in place, without going through a String.
+  private int putLong(int line, int n, long value) {
+    char[] buffer = lines[line];
+    if (value < 0) {
+      if (n < LINE_CAPACITY) buffer[n++] = '-';
+      value = -value;
+    }
+    int start = n;
+    do {
+      if (n >= LINE_CAPACITY) break;
+      buffer[n++] = (char) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    for (int i = start, j = n - 1; i < j; i++, j--) {
+      char c = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = c;
+    }
+    return n;
+  }
+
+  @Override
+  protected void onDraw(@NonNull Canvas canvas) {
+    float width = 0;
+    for (int i = 0; i < LINES; i++) {
+      width = Math.max(width, textPaint.measureText(lines[i], 0, lineLengths[i]));
+    }
+    canvas.drawRect(0, 0, width + 2 * padding, LINES * lineHeight + 2 * padding, backgroundPaint);
+    float y = padding - textPaint.ascent();
+    for (int i = 0; i < LINES; i++) {
+      canvas.drawText(lines[i], 0, lineLengths[i], padding, y, textPaint);
+      y += lineHeight;
+    }
+  }
+
+  @Override
+  public void onVideoDecoderInitialized(@NonNull EventTime eventTime, @NonNull String decoderName,
+                                        long initializedTimestampMs, long initializationDurationMs) {
+    videoDecoder = decoderName;
+  }
+
+  @Override
+  public void onAudioDecoderInitialized(@NonNull EventTime eventTime, @NonNull String decoderName,
+                                        long initializedTimestampMs, long initializationDurationMs) {
+    audioDecoder = decoderName;
+  }
+
+  @Override
+  public void onDroppedVideoFrames(@NonNull EventTime eventTime, int droppedFrames, long elapsedMs) {
+    this.droppedFrames += droppedFrames;
+  }
+
+  @Override
+  public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                              @NonNull MediaLoadData mediaLoadData) {
+    bytesLoaded += loadEventInfo.bytesLoaded;
+  }
+}
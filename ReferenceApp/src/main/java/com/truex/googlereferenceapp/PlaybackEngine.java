@@ -0,0 +1,6 @@
+package com.truex.googlereferenceapp;
+
+public enum PlaybackEngine {
+  MANUAL_IMA,     // IMA drives our VideoAdPlayer, the player stops and re-prepares at each break
+  SINGLE_TIMELINE // content and ads on one ExoPlayer timeline via media3's ImaAdsLoader
+}
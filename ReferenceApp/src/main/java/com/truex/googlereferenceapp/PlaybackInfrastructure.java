@@ -0,0 +1,281 @@
+package com.truex.googlereferenceapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.OptIn;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.database.DatabaseProvider;
+import androidx.media3.database.StandaloneDatabaseProvider;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.CacheWriter;
+import androidx.media3.datasource.cache.LeastRecentlyUsedCacheEvictor;
+import androidx.media3.datasource.cache.NoOpCacheEvictor;
+import androidx.media3.datasource.cache.SimpleCache;
+
+import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
+import com.google.ads.interactivemedia.v3.api.ImaSdkSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Infrastructure shared by every player instance in the process: the IMA SDK settings, the media
+ * cache, the HTTP pool, a worker executor and a background priority one for speculative media
+ * prefetches. Also caps how many players may hold decoders and
+ * buffer memory at once, so that more player views do not exhaust the device.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class PlaybackInfrastructure {
+  private static final String CLASSTAG = PlaybackInfrastructure.class.getSimpleName();
+
+  private static final long MEDIA_CACHE_BYTES = 100 * 1024 * 1024;
+  private static final int WORKER_THREADS = 2;
+
+  /**
+   * A player instance that holds a decoder slot and can be asked to give it back. Called on the
+   * thread that acquires or releases a slot, the main thread for players.
+   */
+  public interface SlotHolder {
+    /**
+     * The slot is needed by another player; suspend playback and release the decoders and buffers
+     * now. The holder then waits for a slot to be granted back.
+     */
+    void onSlotRevoked();
+
+    /**
+     * A slot the holder waited for is free and now held by it. Returns false to decline, e.g. in
+     * the background, and leave the slot to the next waiting holder.
+     */
+    boolean onSlotGranted();
+
+    /** Whether the holder is playing or about to, so its slot must not be revoked. */
+    boolean isPlaying();
+  }
+
+  private static PlaybackInfrastructure instance;
+
+  private final Context appContext;
+  private final DatabaseProvider databaseProvider;
+  private final SimpleCache mediaCache;
+  // Holds offline downloads, which are never evicted by the cache itself.
+  private final SimpleCache downloadCache;
+  private final ExecutorService workerExecutor;
+  // One prefetch at a time, below the worker and player threads, so it never competes with them.
+  private final ExecutorService prefetchExecutor;
+  private ImaSdkSettings imaSdkSettings;
+
+  private final int maxConcurrentPlayers;
+  private final long bufferBytesPerPlayer;
+
+  // Bytes playback read from either cache, for the cache hit rate.
+  private final AtomicLong cachedBytesRead = new AtomicLong();
+  private final CacheDataSource.EventListener cacheEventListener = new CacheDataSource.EventListener() {
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytes) {
+      cachedBytesRead.addAndGet(cachedBytes);
+    }
+
+    @Override
+    public void onCacheIgnored(int reason) {
+    }
+  };
+
+  // Holders of decoder slots, least recently acquired first, and holders waiting for one, first
+  // come first. Both are guarded by slotHolders; holders are revoked and granted outside the lock.
+  private final List<SlotHolder> slotHolders = new ArrayList<>();
+  private final List<SlotHolder> slotWaiters = new ArrayList<>();
+
+  public static synchronized PlaybackInfrastructure get(Context context) {
+    if (instance == null) {
+      instance = new PlaybackInfrastructure(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private PlaybackInfrastructure(Context appContext) {
+    this.appContext = appContext;
+    databaseProvider = new StandaloneDatabaseProvider(appContext);
+    mediaCache = new SimpleCache(new File(appContext.getCacheDir(), "media"),
+      new LeastRecentlyUsedCacheEvictor(MEDIA_CACHE_BYTES), databaseProvider);
+    downloadCache = new SimpleCache(new File(appContext.getFilesDir(), "downloads"),
+      new NoOpCacheEvictor(), databaseProvider);
+    workerExecutor = Executors.newFixedThreadPool(WORKER_THREADS);
+    prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      runnable.run();
+    }, "prefetch"));
+
+    // Low RAM devices get a single decoder; otherwise allow a main player plus previews, as far as
+    // the device can run that many decoders. All players together may buffer at most a quarter of
+    // the app's heap budget.
+    ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+    int decoderInstances = DeviceCapabilities.get(appContext).getMaxInstances(MimeTypes.VIDEO_H264);
+    maxConcurrentPlayers = activityManager.isLowRamDevice() ? 1 : Math.max(1, Math.min(3, decoderInstances));
+    long totalBufferBytes = activityManager.getMemoryClass() * 1024L * 1024L / 4;
+    bufferBytesPerPlayer = totalBufferBytes / maxConcurrentPlayers;
+  }
+
+  /** One IMA SDK setup shared by all ads loaders. */
+  public synchronized ImaSdkSettings getImaSdkSettings(String language) {
+    if (imaSdkSettings == null) {
+      imaSdkSettings = ImaSdkFactory.getInstance().createImaSdkSettings();
+      imaSdkSettings.setDebugMode(true);
+      imaSdkSettings.setLanguage(language);
+    }
+    return imaSdkSettings;
+  }
+
+  /**
+   * Media data sources reading offline downloads first, then through the shared cache and HTTP
+   * pool.
+   */
+  public DataSource.Factory createDataSourceFactory() {
+    CacheDataSource.Factory networkFactory = new CacheDataSource.Factory()
+      .setCache(mediaCache)
+      .setEventListener(cacheEventListener)
+      .setUpstreamDataSourceFactory(HttpStack.get().createDataSourceFactory(appContext))
+      .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    return new CacheDataSource.Factory()
+      .setCache(downloadCache)
+      .setEventListener(cacheEventListener)
+      .setUpstreamDataSourceFactory(networkFactory)
+      .setCacheWriteDataSinkFactory(null); // read only, only the download manager writes it
+  }
+
+  /** A background download of the start of a media url into the media cache. */
+  public static class Prefetch {
+    private final CacheWriter writer;
+
+    Prefetch(CacheWriter writer) {
+      this.writer = writer;
+    }
+
+    /** Stops the download; what was fetched so far stays cached. */
+    public void cancel() {
+      writer.cancel();
+    }
+  }
+
+  /**
+   * Fetches the first bytes of a progressive media url into the media cache on the prefetch
+   * thread, so that the player starts it from the cache rather than the network.
+   */
+  public Prefetch prefetch(String url, long bytes) {
+    CacheDataSource dataSource = new CacheDataSource.Factory()
+      .setCache(mediaCache)
+      .setUpstreamDataSourceFactory(HttpStack.get().createDataSourceFactory(appContext))
+      .createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(url).setLength(bytes).build();
+    CacheWriter writer = new CacheWriter(dataSource, dataSpec, null, null);
+    prefetchExecutor.execute(() -> {
+      try {
+        writer.cache();
+        Log.i(CLASSTAG, "prefetched " + url);
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "prefetch of " + url + " stopped: " + e);
+      }
+    });
+    return new Prefetch(writer);
+  }
+
+  public long getCachedBytesRead() {
+    return cachedBytesRead.get();
+  }
+
+  public DatabaseProvider getDatabaseProvider() {
+    return databaseProvider;
+  }
+
+  public SimpleCache getMediaCache() {
+    return mediaCache;
+  }
+
+  public SimpleCache getDownloadCache() {
+    return downloadCache;
+  }
+
+  public ExecutorService getWorkerExecutor() {
+    return workerExecutor;
+  }
+
+  public int getMaxConcurrentPlayers() {
+    return maxConcurrentPlayers;
+  }
+
+  /** The share of the global buffer memory each player may use. */
+  public long getBufferBytesPerPlayer() {
+    return bufferBytesPerPlayer;
+  }
+
+  /**
+   * Claims a decoder slot for the given player. If all slots are taken, the least recently
+   * acquired idle holder is revoked. A playing holder never is: if all of them play, the claim
+   * is queued and false returned, and the holder is granted a slot once one is released.
+   */
+  public boolean acquireSlot(SlotHolder holder) {
+    SlotHolder victim = null;
+    synchronized (slotHolders) {
+      slotWaiters.remove(holder);
+      if (slotHolders.remove(holder) || slotHolders.size() < maxConcurrentPlayers) {
+        slotHolders.add(holder);
+        return true;
+      }
+      for (SlotHolder candidate : slotHolders) {
+        if (!candidate.isPlaying()) {
+          victim = candidate;
+          break;
+        }
+      }
+      if (victim == null) {
+        Log.i(CLASSTAG, "all " + maxConcurrentPlayers + " decoder slots are playing, waiting for one");
+        slotWaiters.add(holder);
+        return false;
+      }
+      slotHolders.remove(victim);
+      slotHolders.add(holder);
+    }
+    Log.i(CLASSTAG, "decoder cap of " + maxConcurrentPlayers + " reached, revoking an idle slot");
+    victim.onSlotRevoked();
+    synchronized (slotHolders) {
+      // Releasing its player took the victim out of the queue; it waits to get its slot back.
+      if (!slotHolders.contains(victim) && !slotWaiters.contains(victim)) slotWaiters.add(victim);
+    }
+    return true;
+  }
+
+  /** Gives back the holder's slot, or stops it waiting for one. */
+  public void releaseSlot(SlotHolder holder) {
+    synchronized (slotHolders) {
+      slotWaiters.remove(holder);
+      if (!slotHolders.remove(holder)) return;
+    }
+    grantFreeSlots();
+  }
+
+  private void grantFreeSlots() {
+    while (true) {
+      SlotHolder next;
+      synchronized (slotHolders) {
+        if (slotWaiters.isEmpty() || slotHolders.size() >= maxConcurrentPlayers) return;
+        next = slotWaiters.remove(0);
+        slotHolders.add(next);
+      }
+      if (!next.onSlotGranted()) {
+        synchronized (slotHolders) {
+          slotHolders.remove(next);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.truex.googlereferenceapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Speculatively gets playback ready once focus rests on the home page's play button: builds the
+ * player, reads and parses the VMAP, and fetches the start of the content and the preroll ad media
+ * into the media cache. {@link VideoFragment} adopts what is ready when the user does press play.
+ * <p>
+ * The media prefetch runs on the shared low priority prefetch thread, is limited to a few megabytes
+ * of disk cache and skipped on low memory devices; it is cancelled when the user leaves without
+ * playing.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class PlaybackPrewarm {
+  private static final String CLASSTAG = PlaybackPrewarm.class.getSimpleName();
+
+  // Roughly the first seconds of the content and of each preroll ad.
+  private static final long CONTENT_PREFETCH_BYTES = 4 * 1024 * 1024;
+  private static final long AD_PREFETCH_BYTES = 1024 * 1024;
+
+  /** The ads setup prepared ahead of time, for the content it was prepared for. */
+  public static class Prewarmed {
+    public final String contentUrl;
+    public final String vmapXml;
+    public final AdSchedule adSchedule;
+
+    Prewarmed(String contentUrl, String vmapXml, AdSchedule adSchedule) {
+      this.contentUrl = contentUrl;
+      this.vmapXml = vmapXml;
+      this.adSchedule = adSchedule;
+    }
+  }
+
+  private static PlaybackPrewarm instance;
+
+  private String contentUrl;
+  private Future<Prewarmed> result;
+  private final List<PlaybackInfrastructure.Prefetch> prefetches = new ArrayList<>();
+  private volatile boolean cancelled;
+
+  public static synchronized PlaybackPrewarm get() {
+    if (instance == null) {
+      instance = new PlaybackPrewarm();
+    }
+    return instance;
+  }
+
+  /** Starts getting the given content and its ads ready, unless that is already under way. */
+  public synchronized void start(Context context, String contentUrl, int vmapResource, String scheduleAsset) {
+    if (result != null && contentUrl.equals(this.contentUrl)) return;
+    cancel();
+
+    Context appContext = context.getApplicationContext();
+    if (!hasMemoryBudget(appContext)) {
+      Log.i(CLASSTAG, "skipped, not enough memory");
+      return;
+    }
+    Log.i(CLASSTAG, "start: " + contentUrl);
+    this.contentUrl = contentUrl;
+    cancelled = false;
+    PlaybackInfrastructure infrastructure = PlaybackInfrastructure.get(appContext);
+    result = infrastructure.getWorkerExecutor().submit(() -> {
+      VideoPlayerWithAdPlayback.prebuildPlayer(appContext);
+      String vmapXml = VideoFragment.readRawResource(appContext, vmapResource);
+      AdSchedule schedule = AdSchedule.load(appContext, scheduleAsset);
+
+      // The media goes to the cache in the background; the ads setup is ready now.
+      prefetchMedia(infrastructure, contentUrl, schedule);
+      return new Prewarmed(contentUrl, vmapXml, schedule);
+    });
+  }
+
+  /**
+   * Returns the prepared ads setup if it is ready and was made for the given content, without
+   * waiting for it. The media prefetch carries on either way.
+   */
+  public synchronized Prewarmed adopt(String contentUrl) {
+    Future<Prewarmed> pending = result;
+    if (pending == null || !contentUrl.equals(this.contentUrl) || !pending.isDone()) return null;
+    result = null;
+    try {
+      return pending.get();
+    } catch (ExecutionException | InterruptedException e) {
+      Log.w(CLASSTAG, "prewarm failed: " + e);
+      return null;
+    }
+  }
+
+  /** Stops the prefetch, e.g. when the user navigates away without playing. */
+  public synchronized void cancel() {
+    if (result != null) {
+      Log.i(CLASSTAG, "cancel");
+      result.cancel(true);
+      result = null;
+      contentUrl = null;
+    }
+    // Also those of an adopted prewarm, which carry on until now.
+    cancelled = true;
+    synchronized (prefetches) {
+      for (PlaybackInfrastructure.Prefetch prefetch : prefetches) prefetch.cancel();
+      prefetches.clear();
+    }
+  }
+
+  private static boolean hasMemoryBudget(Context appContext) {
+    ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    return !activityManager.isLowRamDevice() && !memoryInfo.lowMemory;
+  }
+
+  private void prefetchMedia(PlaybackInfrastructure infrastructure, String contentUrl, AdSchedule schedule) {
+    // Only progressive content can be prefetched by byte range; streams are left to the player.
+    if (Util.inferContentType(Uri.parse(contentUrl)) == C.CONTENT_TYPE_OTHER) {
+      prefetch(infrastructure, contentUrl, CONTENT_PREFETCH_BYTES);
+    }
+    for (AdSchedule.Break adBreak : schedule.getBreaks()) {
+      if (adBreak.timeOffsetMs != 0) continue;
+      for (AdSchedule.Ad ad : adBreak.ads) {
+        for (AdSchedule.MediaFile mediaFile : ad.mediaFiles) {
+          if (!mediaFile.type.startsWith("video/")) continue;
+          prefetch(infrastructure, mediaFile.url, AD_PREFETCH_BYTES);
+          break; // IMA picks one rendition per ad; the first is the best guess
+        }
+      }
+    }
+  }
+
+  private void prefetch(PlaybackInfrastructure infrastructure, String url, long bytes) {
+    synchronized (prefetches) {
+      if (cancelled) return;
+      prefetches.add(infrastructure.prefetch(url, bytes));
+    }
+  }
+}
@@ -2,4 +2,8 @@ package com.truex.googlereferenceapp;
 
 public interface PopupCallback {
     void onPopup(String url);
+
+    /** Called as an interactive ad starts, i.e. when a popup may soon be opened. */
+    default void onInteractiveAdStarted() {
+    }
 }
@@ -0,0 +1,312 @@
+package com.truex.googlereferenceapp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.annotation.Nullable;
+import androidx.media3.common.Format;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DecoderReuseEvaluation;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Collects playback quality of experience metrics from the player: startup time, rebuffers,
+ * dropped frames, bitrate switches and bandwidth estimates. Metrics are aggregated for the whole
+ * session as well as per ad and per content segment, i.e. the content played between breaks. Only
+ * the most recent segments are kept, so that a long live session does not grow without bound; the
+ * older ones remain in the session totals.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class QoeCollector implements AnalyticsListener {
+  private static final String CLASSTAG = QoeCollector.class.getSimpleName();
+
+  // Segments kept of each kind; a few hours of live content with a break every few minutes.
+  private static final int MAX_SEGMENTS = 64;
+
+  /** Primitive counters for one span of playback. */
+  public static class Aggregate {
+    private final String label;
+    // Entered by a gapless transition from a queued ad, so it has no startup of its own.
+    final boolean gapless;
+    long startupMs = -1;
+    int rebufferCount;
+    long rebufferMs;
+    long playingMs;
+    int droppedFrames;
+    int bitrateSwitches;
+    int videoBitrate = Format.NO_VALUE;
+    long bandwidthEstimateSum;
+    int bandwidthEstimateCount;
+
+    Aggregate(String label, boolean gapless) {
+      this.label = label;
+      this.gapless = gapless;
+    }
+
+    public String getLabel() { return label; }
+    public boolean isGapless() { return gapless; }
+    public long getStartupMs() { return startupMs; }
+    public int getRebufferCount() { return rebufferCount; }
+    public long getRebufferMs() { return rebufferMs; }
+    public long getPlayingMs() { return playingMs; }
+    public int getDroppedFrames() { return droppedFrames; }
+    public int getBitrateSwitches() { return bitrateSwitches; }
+    public int getVideoBitrate() { return videoBitrate; }
+
+    public long getMeanBandwidthEstimate() {
+      return bandwidthEstimateCount == 0 ? 0 : bandwidthEstimateSum / bandwidthEstimateCount;
+    }
+
+    public JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("label", label);
+      json.put("gapless", gapless);
+      json.put("startupMs", startupMs);
+      json.put("rebufferCount", rebufferCount);
+      json.put("rebufferMs", rebufferMs);
+      json.put("playingMs", playingMs);
+      json.put("droppedFrames", droppedFrames);
+      json.put("bitrateSwitches", bitrateSwitches);
+      json.put("videoBitrate", videoBitrate);
+      json.put("meanBandwidthEstimate", getMeanBandwidthEstimate());
+      return json;
+    }
+  }
+
+  /** The most recent segments of one kind, oldest first, in a ring that overwrites the oldest. */
+  private static class Segments {
+    private final Aggregate[] ring = new Aggregate[MAX_SEGMENTS];
+    private int first;
+    private int size;
+    // Every segment ever added, including those overwritten since.
+    private int total;
+
+    void add(Aggregate segment) {
+      ring[(first + size) % ring.length] = segment;
+      if (size < ring.length) {
+        size++;
+      } else {
+        first = (first + 1) % ring.length;
+      }
+      total++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int total() {
+      return total;
+    }
+
+    Aggregate get(int index) {
+      if (index < 0 || index >= size) throw new IndexOutOfBoundsException("segment " + index + " of " + size);
+      return ring[(first + index) % ring.length];
+    }
+
+    JSONArray toJson() throws JSONException {
+      JSONArray json = new JSONArray();
+      for (int i = 0; i < size; i++) json.put(get(i).toJson());
+      return json;
+    }
+  }
+
+  /** Receives the collected metrics when the session is exported. */
+  public interface Exporter {
+    void export(@NonNull JSONObject metrics);
+  }
+
+  private final Aggregate session = new Aggregate("session", false);
+  private final Segments adSegments = new Segments();
+  private final Segments contentSegments = new Segments();
+
+  private Aggregate segment;
+  private long segmentStartTime;
+  private boolean firstFrameRendered;
+  // The window the last video format was read for; formats of another window are not switches.
+  private int formatWindowIndex = -1;
+
+  private boolean isSeeking;
+  private long bufferingStartTime = -1;
+  private long playingStartTime = -1;
+
+  private Exporter exporter = metrics -> Log.i(CLASSTAG, metrics.toString());
+
+  public void setExporter(Exporter exporter) {
+    this.exporter = exporter;
+  }
+
+  /** Starts a new ad segment. */
+  public void beginAd(String adId) {
+    beginSegment(new Aggregate("ad:" + adId, false), adSegments);
+  }
+
+  /**
+   * Starts a new ad segment for an ad the player already moved onto by itself. Its first frame
+   * followed the previous ad's last without a startup, so none is recorded for it.
+   */
+  public void beginQueuedAd(String adId) {
+    beginSegment(new Aggregate("ad:" + adId, true), adSegments);
+  }
+
+  /** Starts a new content segment, i.e. content played up to the next break. */
+  public void beginContent() {
+    beginSegment(new Aggregate("content:" + contentSegments.total(), false), contentSegments);
+  }
+
+  private void beginSegment(Aggregate next, Segments segments) {
+    long now = SystemClock.elapsedRealtime();
+    closeSpans(now);
+    segment = next;
+    segments.add(next);
+    segmentStartTime = now;
+    // A gapless segment is already showing frames, so a stall in it is a rebuffer straight away.
+    firstFrameRendered = next.gapless;
+  }
+
+  // Accounts any open buffering or playing span to the current segment.
+  private void closeSpans(long now) {
+    if (bufferingStartTime >= 0) {
+      addRebufferTime(now - bufferingStartTime);
+      bufferingStartTime = now;
+    }
+    if (playingStartTime >= 0) {
+      long playing = now - playingStartTime;
+      session.playingMs += playing;
+      if (segment != null) segment.playingMs += playing;
+      playingStartTime = now;
+    }
+  }
+
+  private void addRebufferTime(long durationMs) {
+    session.rebufferMs += durationMs;
+    if (segment != null) segment.rebufferMs += durationMs;
+  }
+
+  @Override
+  public void onRenderedFirstFrame(@NonNull EventTime eventTime, @NonNull Object output, long renderTimeMs) {
+    if (firstFrameRendered || segment == null) return;
+    firstFrameRendered = true;
+    segment.startupMs = SystemClock.elapsedRealtime() - segmentStartTime;
+    if (session.startupMs < 0) session.startupMs = segment.startupMs;
+  }
+
+  @Override
+  public void onPositionDiscontinuity(@NonNull EventTime eventTime, @NonNull Player.PositionInfo oldPosition,
+                                      @NonNull Player.PositionInfo newPosition, int reason) {
+    if (reason == Player.DISCONTINUITY_REASON_SEEK) isSeeking = true;
+  }
+
+  @Override
+  public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+    long now = SystemClock.elapsedRealtime();
+    if (state == Player.STATE_BUFFERING) {
+      // Only stalls after the first frame and not caused by a seek count as rebuffers.
+      if (firstFrameRendered && !isSeeking && bufferingStartTime < 0) {
+        bufferingStartTime = now;
+        session.rebufferCount++;
+        if (segment != null) segment.rebufferCount++;
+      }
+    } else {
+      if (bufferingStartTime >= 0) {
+        addRebufferTime(now - bufferingStartTime);
+        bufferingStartTime = -1;
+      }
+      if (state == Player.STATE_READY) isSeeking = false;
+    }
+  }
+
+  @Override
+  public void onIsPlayingChanged(@NonNull EventTime eventTime, boolean isPlaying) {
+    long now = SystemClock.elapsedRealtime();
+    if (isPlaying) {
+      playingStartTime = now;
+    } else if (playingStartTime >= 0) {
+      closeSpans(now);
+      playingStartTime = -1;
+    }
+  }
+
+  @Override
+  public void onDroppedVideoFrames(@NonNull EventTime eventTime, int droppedFrames, long elapsedMs) {
+    session.droppedFrames += droppedFrames;
+    if (segment != null) segment.droppedFrames += droppedFrames;
+  }
+
+  @Override
+  public void onVideoInputFormatChanged(@NonNull EventTime eventTime, @NonNull Format format,
+                                        @Nullable DecoderReuseEvaluation decoderReuseEvaluation) {
+    // Only changes within one segment and one playlist item are switches; the player moving on
+    // to an ad or back to content is not, even when it reads ahead into the next item.
+    int bitrate = format.bitrate;
+    Aggregate current = segment != null ? segment : session;
+    boolean sameWindow = eventTime.windowIndex == formatWindowIndex;
+    if (sameWindow && current.videoBitrate != Format.NO_VALUE && bitrate != current.videoBitrate) {
+      session.bitrateSwitches++;
+      if (segment != null) segment.bitrateSwitches++;
+    }
+    formatWindowIndex = eventTime.windowIndex;
+    session.videoBitrate = bitrate;
+    if (segment != null) segment.videoBitrate = bitrate;
+  }
+
+  @Override
+  public void onBandwidthEstimate(@NonNull EventTime eventTime, int totalLoadTimeMs,
+                                  long totalBytesLoaded, long bitrateEstimate) {
+    session.bandwidthEstimateSum += bitrateEstimate;
+    session.bandwidthEstimateCount++;
+    if (segment != null) {
+      segment.bandwidthEstimateSum += bitrateEstimate;
+      segment.bandwidthEstimateCount++;
+    }
+  }
+
+  public Aggregate getSession() {
+    closeSpans(SystemClock.elapsedRealtime());
+    return session;
+  }
+
+  // Segments are read by index, oldest kept first, so that callers polling them, such as the HUD,
+  // allocate nothing.
+  public int getAdSegmentCount() {
+    return adSegments.size();
+  }
+
+  public Aggregate getAdSegment(int index) {
+    return adSegments.get(index);
+  }
+
+  public int getContentSegmentCount() {
+    return contentSegments.size();
+  }
+
+  public Aggregate getContentSegment(int index) {
+    return contentSegments.get(index);
+  }
+
+  public JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("session", getSession().toJson());
+    json.put("ads", adSegments.toJson());
+    json.put("adCount", adSegments.total());
+    json.put("content", contentSegments.toJson());
+    json.put("contentCount", contentSegments.total());
+    return json;
+  }
+
+  /** Hands the metrics collected so far to the exporter. */
+  public void export() {
+    try {
+      exporter.export(toJson());
+    } catch (JSONException e) {
+      Log.w(CLASSTAG, "export failed: " + e);
+    }
+  }
+}
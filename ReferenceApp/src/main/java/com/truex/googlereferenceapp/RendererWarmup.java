@@ -0,0 +1,138 @@
+package com.truex.googlereferenceapp;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import androidx.annotation.NonNull;
+
+import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
+
+import java.io.IOException;
+
+/**
+ * Pays the first-use cost of the engines ads render with while the app is idle, rather than in the
+ * middle of the first ad break. Both TruexAdRenderer and IMA render through WebView, whose first
+ * initialization in the process loads the provider and starts its renderer process.
+ * <p>
+ * One blank WebView is kept afterwards so the renderer process stays up; it is released with the
+ * idle renderers under memory pressure.
+ */
+public class RendererWarmup implements MemoryTrimPolicy.Trimmable {
+  private static final String CLASSTAG = RendererWarmup.class.getSimpleName();
+
+  @SuppressLint("StaticFieldLeak") // holds the application context only
+  private static RendererWarmup instance;
+
+  private final Context appContext;
+
+  private boolean scheduled;
+  private WebView warmWebView;
+
+  // Warm-up stage timings, or -1 until measured.
+  private long providerInitMs = -1;
+  private long webViewCreateMs = -1;
+  private long imaInitMs = -1;
+
+  // How long the interactive ad renderer took to set up, for the first ad and the latest one.
+  private long firstInteractiveSetupMs = -1;
+  private boolean firstInteractiveWasWarm;
+  private long lastInteractiveSetupMs = -1;
+
+  public static synchronized RendererWarmup get(Context context) {
+    if (instance == null) {
+      instance = new RendererWarmup(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private RendererWarmup(Context appContext) {
+    this.appContext = appContext;
+  }
+
+  /**
+   * Runs the warm-up once the main thread's queue next goes idle, also connecting ahead to the
+   * hosts of the given compiled ad schedule. Does nothing if it already ran and has not been
+   * trimmed since. Must be called on the main thread.
+   */
+  public void scheduleAtIdle(String scheduleAsset) {
+    if (scheduled || warmWebView != null) return;
+    scheduled = true;
+    Looper.myQueue().addIdleHandler(() -> {
+      scheduled = false;
+      warmUp();
+      preconnect(scheduleAsset);
+      return false;
+    });
+  }
+
+  private void warmUp() {
+    try {
+      // Loads the WebView provider, without creating a view yet.
+      long start = SystemClock.elapsedRealtime();
+      WebSettings.getDefaultUserAgent(appContext);
+      providerInitMs = SystemClock.elapsedRealtime() - start;
+
+      // Starts the renderer process; it stays up while this view exists.
+      start = SystemClock.elapsedRealtime();
+      warmWebView = new WebView(appContext);
+      warmWebView.loadDataWithBaseURL(null, "", "text/html", "utf-8", null);
+      webViewCreateMs = SystemClock.elapsedRealtime() - start;
+    } catch (RuntimeException e) {
+      // E.g. a device without a WebView package; the ads will fail the same way later.
+      Log.w(CLASSTAG, "WebView warm-up failed: " + e);
+    }
+
+    long start = SystemClock.elapsedRealtime();
+    ImaSdkFactory.getInstance().createAdsRenderingSettings();
+    imaInitMs = SystemClock.elapsedRealtime() - start;
+
+    Log.i(CLASSTAG, "warmed up: provider " + providerInitMs + "ms, webview " + webViewCreateMs
+      + "ms, ima " + imaInitMs + "ms");
+  }
+
+  // The renderers fetch their ad configuration and assets from these hosts as they start.
+  private void preconnect(String scheduleAsset) {
+    PlaybackInfrastructure.get(appContext).getWorkerExecutor().execute(() -> {
+      try {
+        HttpStack.get().preconnect(AdSchedule.load(appContext, scheduleAsset).getOrigins());
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "preconnect skipped: " + e);
+      }
+    });
+  }
+
+  public boolean isWarm() {
+    return webViewCreateMs >= 0;
+  }
+
+  /** Records how long an interactive ad renderer took from creation to being started. */
+  public void recordInteractiveSetup(long durationMs) {
+    if (firstInteractiveSetupMs < 0) {
+      firstInteractiveSetupMs = durationMs;
+      firstInteractiveWasWarm = isWarm();
+    }
+    lastInteractiveSetupMs = durationMs;
+    Log.i(CLASSTAG, "interactive ad setup " + durationMs + "ms, " + report());
+  }
+
+  @NonNull
+  public String report() {
+    return "warm-up provider " + providerInitMs + "ms webview " + webViewCreateMs + "ms ima "
+      + imaInitMs + "ms; first interactive setup " + firstInteractiveSetupMs + "ms"
+      + (firstInteractiveWasWarm ? " (warm)" : " (cold)") + ", last " + lastInteractiveSetupMs + "ms";
+  }
+
+  @Override
+  public boolean onTrim(@NonNull MemoryTrimPolicy.Tier tier) {
+    if (tier != MemoryTrimPolicy.Tier.IDLE_RENDERERS || warmWebView == null) return false;
+    Log.i(CLASSTAG, "releasing warm WebView");
+    warmWebView.destroy();
+    warmWebView = null;
+    return true;
+  }
+}
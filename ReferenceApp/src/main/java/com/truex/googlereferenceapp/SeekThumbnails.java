@@ -0,0 +1,456 @@
+package com.truex.googlereferenceapp;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.RelativeLayout;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.ui.TimeBar;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Shows a preview of the content above the controller's time bar while it is scrubbed, so that a
+ * seek lands where the user meant it to instead of costing a rebuffer per guess.
+ * <p>
+ * Previews are tiles of sprite sheets listed in a WebVTT index, each cue pointing at a region of a
+ * sheet with a {@code #xywh=} fragment. Tiles are cut out of the sheets and decoded off the main
+ * thread into a memory bounded LRU cache, and the fetched sheets into another one bounded by their
+ * encoded size; while scrubbing, the tiles next to the current one are decoded ahead, mostly in the
+ * direction of the scrub.
+ * <p>
+ * Breaks whose ads are part of the stream itself, i.e. those with a duration, are left out: a
+ * position inside such a break previews the content after it, and tiles that overlap a break are
+ * never shown. Breaks played by IMA are not in the content, so the sheets never show them.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class SeekThumbnails implements TimeBar.OnScrubListener, MemoryTrimPolicy.Trimmable {
+  private static final String CLASSTAG = SeekThumbnails.class.getSimpleName();
+
+  // Tiles decoded ahead in the scrub's direction, and behind it.
+  private static final int PREFETCH_AHEAD = 3;
+  private static final int PREFETCH_BEHIND = 1;
+  private static final int MAX_IN_FLIGHT = 2;
+
+  private static final int PREVIEW_WIDTH_DP = 192;
+  private static final int PREVIEW_HEIGHT_DP = 108;
+  private static final int PREVIEW_MARGIN_DP = 8;
+
+  private static final Pattern CUE_TIMING = Pattern.compile("(\\S+)\\s+-->\\s+(\\S+)");
+  private static final Pattern XYWH = Pattern.compile("#xywh=(\\d+),(\\d+),(\\d+),(\\d+)$");
+
+  /** One preview: a region of a sprite sheet, for a range of content positions. */
+  static class Tile {
+    final long startMs;
+    final long endMs;
+    final String sheetUrl;
+    final Rect region;
+
+    Tile(long startMs, long endMs, String sheetUrl, Rect region) {
+      this.startMs = startMs;
+      this.endMs = endMs;
+      this.sheetUrl = sheetUrl;
+      this.region = region;
+    }
+  }
+
+  /** A fetched sprite sheet. Its decoder holds the encoded bytes, which is what it costs. */
+  private static class Sheet {
+    final BitmapRegionDecoder decoder;
+    final int bytes;
+    // Not in the cache: recycled once its tile is cut.
+    final boolean cached;
+
+    Sheet(BitmapRegionDecoder decoder, int bytes, boolean cached) {
+      this.decoder = decoder;
+      this.bytes = bytes;
+      this.cached = cached;
+    }
+  }
+
+  private final String indexUrl;
+  private final Executor executor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final LruCache<Integer, Bitmap> tileCache;
+  private final LruCache<String, Sheet> sheets;
+
+  // Bumped by detach(), so that fetches and decodes started before it are dropped.
+  private volatile int generation;
+
+  // Everything below is only touched on the main thread.
+  private List<Tile> tiles = Collections.emptyList();
+  private List<AdBreak> adBreaks = Collections.emptyList();
+  private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+  private final Set<Integer> inFlight = new HashSet<>();
+  private VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private TimeBar timeBar;
+  private ImageView preview;
+  private boolean scrubbing;
+  private long lastScrubPositionMs;
+  private int wantedTile = -1;
+  private final int[] barLocation = new int[2];
+  private final int[] parentLocation = new int[2];
+
+  public SeekThumbnails(Context context, String indexUrl) {
+    this.indexUrl = indexUrl;
+    executor = PlaybackInfrastructure.get(context).getWorkerExecutor();
+
+    // At most a thirty-second of the app's heap budget, half for tiles and half for sheets; a
+    // tile is a few tens of kilobytes, a sheet a few hundred.
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    int cacheBytes = activityManager.getMemoryClass() * 1024 * 1024 / 64;
+    tileCache = new LruCache<Integer, Bitmap>(cacheBytes) {
+      @Override
+      protected int sizeOf(Integer key, Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+      }
+    };
+    sheets = new LruCache<String, Sheet>(cacheBytes) {
+      @Override
+      protected int sizeOf(String key, Sheet sheet) {
+        return sheet.bytes;
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key, Sheet oldValue, Sheet newValue) {
+        oldValue.decoder.recycle();
+      }
+    };
+  }
+
+  /** Hooks into the player's time bar and starts loading the index. */
+  void attach(VideoPlayerWithAdPlayback videoPlayerWithAdPlayback) {
+    this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
+    timeBar = videoPlayerWithAdPlayback.getPlayerView().findViewById(androidx.media3.ui.R.id.exo_progress);
+    if (timeBar == null) {
+      Log.w(CLASSTAG, "no time bar to preview");
+      return;
+    }
+    timeBar.addListener(this);
+
+    Context context = videoPlayerWithAdPlayback.getContext();
+    float density = context.getResources().getDisplayMetrics().density;
+    preview = new ImageView(context);
+    preview.setScaleType(ImageView.ScaleType.FIT_CENTER);
+    preview.setBackgroundColor(0xFF000000);
+    preview.setVisibility(View.GONE);
+    videoPlayerWithAdPlayback.addView(preview, new RelativeLayout.LayoutParams(
+      (int) (PREVIEW_WIDTH_DP * density), (int) (PREVIEW_HEIGHT_DP * density)));
+
+    int attachGeneration = generation;
+    executor.execute(() -> {
+      try {
+        List<Tile> loaded = parseVtt(fetch(indexUrl), indexUrl);
+        Log.i(CLASSTAG, loaded.size() + " seek thumbnails from " + indexUrl);
+        mainHandler.post(() -> {
+          if (attachGeneration == generation) tiles = loaded;
+        });
+      } catch (IOException | IllegalArgumentException e) {
+        // OkHttp rejects a malformed index url with an IllegalArgumentException.
+        Log.w(CLASSTAG, "no seek thumbnails: " + e);
+      }
+    });
+  }
+
+  void detach() {
+    generation++;
+    if (timeBar != null) timeBar.removeListener(this);
+    if (preview != null) videoPlayerWithAdPlayback.removeView(preview);
+    timeBar = null;
+    preview = null;
+    tiles = Collections.emptyList();
+    pending.clear();
+    inFlight.clear();
+    tileCache.evictAll();
+    sheets.evictAll();
+  }
+
+  /** The breaks shown on the time bar; kept by reference, as live breaks move with the window. */
+  void setAdBreaks(List<AdBreak> adBreaks) {
+    this.adBreaks = adBreaks != null ? adBreaks : Collections.emptyList();
+  }
+
+  @Override
+  public void onScrubStart(@NonNull TimeBar timeBar, long position) {
+    scrubbing = true;
+    lastScrubPositionMs = position;
+    showPreview(position, true);
+  }
+
+  @Override
+  public void onScrubMove(@NonNull TimeBar timeBar, long position) {
+    boolean forward = position >= lastScrubPositionMs;
+    lastScrubPositionMs = position;
+    showPreview(position, forward);
+  }
+
+  @Override
+  public void onScrubStop(@NonNull TimeBar timeBar, long position, boolean canceled) {
+    scrubbing = false;
+    wantedTile = -1;
+    pending.clear();
+    if (preview != null) preview.setVisibility(View.GONE);
+  }
+
+  private void showPreview(long positionMs, boolean forward) {
+    // During an ad the time bar is the ad's own.
+    if (preview == null || videoPlayerWithAdPlayback.isPlayingAd()) return;
+    int index = tileFor(positionMs);
+    wantedTile = index;
+    if (index < 0) {
+      preview.setVisibility(View.GONE);
+      return;
+    }
+
+    Bitmap bitmap = tileCache.get(index);
+    if (bitmap != null) preview.setImageBitmap(bitmap);
+    placePreview(positionMs);
+    // Until its tile is decoded, the previous one stays up rather than the preview flickering.
+    if (bitmap != null || preview.getDrawable() != null) preview.setVisibility(View.VISIBLE);
+
+    // The latest position's neighbourhood replaces whatever was still queued for an earlier one.
+    pending.clear();
+    enqueue(index);
+    int step = forward ? 1 : -1;
+    for (int i = 1; i <= PREFETCH_AHEAD; i++) enqueue(nextShownTile(index, step * i));
+    for (int i = 1; i <= PREFETCH_BEHIND; i++) enqueue(nextShownTile(index, -step * i));
+    decodePending();
+  }
+
+  private void placePreview(long positionMs) {
+    long durationMs = videoPlayerWithAdPlayback.getContentDuration();
+    View bar = (View) timeBar;
+    if (durationMs == C.TIME_UNSET || durationMs <= 0 || bar.getWidth() == 0) return;
+    bar.getLocationInWindow(barLocation);
+    videoPlayerWithAdPlayback.getLocationInWindow(parentLocation);
+
+    int width = preview.getLayoutParams().width;
+    int height = preview.getLayoutParams().height;
+    float fraction = Math.min(1f, (float) positionMs / durationMs);
+    float x = barLocation[0] - parentLocation[0] + fraction * bar.getWidth() - width / 2f;
+    float margin = PREVIEW_MARGIN_DP * preview.getResources().getDisplayMetrics().density;
+    preview.setTranslationX(Math.max(0, Math.min(x, videoPlayerWithAdPlayback.getWidth() - width)));
+    preview.setTranslationY(Math.max(0, barLocation[1] - parentLocation[1] - height - margin));
+  }
+
+  private void enqueue(int index) {
+    if (index < 0 || pending.contains(index) || inFlight.contains(index) || tileCache.get(index) != null) return;
+    pending.add(index);
+  }
+
+  private void decodePending() {
+    while (inFlight.size() < MAX_IN_FLIGHT && !pending.isEmpty()) {
+      int index = pending.poll();
+      Tile tile = tiles.get(index);
+      inFlight.add(index);
+      int decodeGeneration = generation;
+      executor.execute(() -> {
+        if (decodeGeneration != generation) return;
+        Bitmap bitmap = decode(tile, decodeGeneration);
+        mainHandler.post(() -> onTileDecoded(index, bitmap, decodeGeneration));
+      });
+    }
+  }
+
+  private void onTileDecoded(int index, Bitmap bitmap, int decodeGeneration) {
+    // Detached since: the tile is not wanted any more.
+    if (decodeGeneration != generation) return;
+    inFlight.remove(index);
+    if (bitmap != null) {
+      tileCache.put(index, bitmap);
+      if (scrubbing && preview != null && index == wantedTile) {
+        preview.setImageBitmap(bitmap);
+        preview.setVisibility(View.VISIBLE);
+      }
+    }
+    if (scrubbing) decodePending();
+  }
+
+  @WorkerThread
+  private Bitmap decode(Tile tile, int decodeGeneration) {
+    Sheet sheet = null;
+    try {
+      sheet = sheet(tile.sheetUrl, decodeGeneration);
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      return sheet.decoder.decodeRegion(tile.region, options);
+    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+      // A sheet evicted while one of its tiles was being cut is recycled; the tile is retried
+      // the next time it is wanted.
+      Log.w(CLASSTAG, "could not decode tile of " + tile.sheetUrl + ": " + e);
+      return null;
+    } finally {
+      if (sheet != null && !sheet.cached) sheet.decoder.recycle();
+    }
+  }
+
+  // Two tiles of a sheet that is not loaded yet may both fetch it; the second copy replaces the
+  // first. A sheet over the whole budget, or fetched for a detached preview, is not cached.
+  @WorkerThread
+  private Sheet sheet(String url, int decodeGeneration) throws IOException {
+    Sheet sheet = sheets.get(url);
+    if (sheet != null) return sheet;
+    Request request = new Request.Builder().url(url).build();
+    byte[] bytes;
+    try (Response response = HttpStack.get().getClient().newCall(request).execute()) {
+      ResponseBody body = response.body();
+      if (!response.isSuccessful() || body == null) throw new IOException("HTTP " + response.code());
+      bytes = body.bytes();
+    }
+    BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(bytes, 0, bytes.length, false);
+    if (decoder == null) throw new IOException("Cannot decode " + url);
+    boolean cached = bytes.length <= sheets.maxSize() && decodeGeneration == generation;
+    sheet = new Sheet(decoder, bytes.length, cached);
+    if (cached) {
+      sheets.put(url, sheet);
+      // Detached between the check and the put: evictAll() has run already.
+      if (decodeGeneration != generation) sheets.remove(url);
+    }
+    return sheet;
+  }
+
+  @WorkerThread
+  private static String fetch(String url) throws IOException {
+    Request request = new Request.Builder().url(url).build();
+    try (Response response = HttpStack.get().getClient().newCall(request).execute()) {
+      ResponseBody body = response.body();
+      if (!response.isSuccessful() || body == null) throw new IOException("HTTP " + response.code());
+      return body.string();
+    }
+  }
+
+  // The tile to preview a content position with, or -1 if there is none that shows no ads.
+  private int tileFor(long positionMs) {
+    if (tiles.isEmpty()) return -1;
+    positionMs = skipAds(positionMs);
+    int low = 0;
+    int high = tiles.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (tiles.get(mid).startMs <= positionMs) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return overlapsAd(tiles.get(low)) ? nextShownTile(low, 1) : low;
+  }
+
+  // The tile the given number of shown tiles away, skipping those that overlap a break.
+  private int nextShownTile(int index, int offset) {
+    int step = offset > 0 ? 1 : -1;
+    int remaining = Math.abs(offset);
+    while (remaining > 0) {
+      index += step;
+      if (index < 0 || index >= tiles.size()) return -1;
+      if (!overlapsAd(tiles.get(index))) remaining--;
+    }
+    return index;
+  }
+
+  private long skipAds(long positionMs) {
+    for (AdBreak adBreak : adBreaks) {
+      if (adBreak.durationMs <= 0) continue;
+      if (positionMs >= adBreak.contentPosition && positionMs < adBreak.contentPosition + adBreak.durationMs) {
+        return adBreak.contentPosition + adBreak.durationMs;
+      }
+    }
+    return positionMs;
+  }
+
+  private boolean overlapsAd(Tile tile) {
+    for (AdBreak adBreak : adBreaks) {
+      if (adBreak.durationMs <= 0) continue;
+      if (tile.startMs < adBreak.contentPosition + adBreak.durationMs && tile.endMs > adBreak.contentPosition) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the tiles of a WebVTT thumbnail index, resolving sheet urls against the index's own.
+   * Depends on nothing but the text, so index fixtures can be checked directly.
+   */
+  static List<Tile> parseVtt(String vtt, String indexUrl) throws IOException {
+    List<Tile> tiles = new ArrayList<>();
+    String[] lines = vtt.split("\r?\n");
+    URI base;
+    try {
+      base = new URI(indexUrl);
+    } catch (URISyntaxException e) {
+      throw new IOException("Bad index url " + indexUrl, e);
+    }
+    for (int i = 0; i < lines.length - 1; i++) {
+      Matcher timing = CUE_TIMING.matcher(lines[i]);
+      if (!timing.find()) continue;
+      String target = lines[++i].trim();
+      Matcher xywh = XYWH.matcher(target);
+      if (!xywh.find()) throw new IOException("Cue without a #xywh region: " + target);
+      int x = Integer.parseInt(xywh.group(1));
+      int y = Integer.parseInt(xywh.group(2));
+      Rect region = new Rect(x, y, x + Integer.parseInt(xywh.group(3)), y + Integer.parseInt(xywh.group(4)));
+      String sheetUrl;
+      try {
+        sheetUrl = base.resolve(target.substring(0, xywh.start())).toString();
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Bad sheet url " + target, e);
+      }
+      tiles.add(new Tile(parseTimestamp(timing.group(1)), parseTimestamp(timing.group(2)), sheetUrl, region));
+    }
+    tiles.sort((a, b) -> Long.compare(a.startMs, b.startMs));
+    return tiles;
+  }
+
+  // hh:mm:ss.ttt or mm:ss.ttt
+  private static long parseTimestamp(String timestamp) throws IOException {
+    String[] parts = timestamp.split(":");
+    try {
+      long ms = Math.round(Double.parseDouble(parts[parts.length - 1]) * 1000);
+      long multiplier = 60000;
+      for (int i = parts.length - 2; i >= 0; i--, multiplier *= 60) {
+        ms += Long.parseLong(parts[i]) * multiplier;
+      }
+      return ms;
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad cue time " + timestamp);
+    }
+  }
+
+  @Override
+  public boolean onTrim(@NonNull MemoryTrimPolicy.Tier tier) {
+    if (tier != MemoryTrimPolicy.Tier.CACHES) return false;
+    tileCache.evictAll();
+    sheets.evictAll();
+    return true;
+  }
+}
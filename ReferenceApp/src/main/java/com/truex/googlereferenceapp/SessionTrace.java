@@ -0,0 +1,233 @@
+package com.truex.googlereferenceapp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the ordered stream of IMA ad events, VideoAdPlayer calls, player callbacks and trueX
+ * events of a session into a compact binary trace, so that a slow break seen in the field can be
+ * replayed with {@link SessionTraceReplayer}.
+ * <p>
+ * Each entry is a source byte, the time since the previous entry in microseconds, a name, a
+ * numeric value and an optional text. Numbers are varints and strings are written once, then
+ * referred to by their index.
+ * <p>
+ * Players record into {@link #DISABLED} unless this is a debug build, so release sessions pay
+ * nothing for it.
+ */
+public class SessionTrace {
+  private static final String CLASSTAG = SessionTrace.class.getSimpleName();
+
+  static final int MAGIC = 0x53545243; // "STRC"
+  static final int VERSION = 1;
+
+  // Stops recording past this, so a long session can't grow the trace without bounds.
+  private static final int MAX_BYTES = 1024 * 1024;
+
+  public enum Source {
+    SESSION,   // session setup, e.g. the ad cue points, and simulated progress polls
+    AD_EVENT,  // IMA AdEvents
+    AD_PLAYER, // IMA calls into our VideoAdPlayer
+    PLAYER,    // Player.Listener callbacks
+    TRUEX      // TruexAdEvents
+  }
+
+  /** One decoded trace entry. */
+  public static class Entry {
+    public final Source source;
+    public final long timeMicros;
+    public final String name;
+    public final long value;
+    public final String text;
+
+    Entry(Source source, long timeMicros, String name, long value, String text) {
+      this.source = source;
+      this.timeMicros = timeMicros;
+      this.name = name;
+      this.value = value;
+      this.text = text;
+    }
+  }
+
+  /** A trace that records nothing. */
+  public static final SessionTrace DISABLED = new SessionTrace(false);
+
+  private final boolean enabled;
+  private final ByteArrayOutputStream buffer;
+  private final DataOutputStream out;
+  private final Map<String, Integer> strings = new HashMap<>();
+  private final long startNanos = System.nanoTime();
+  private long lastMicros;
+  private int entryCount;
+  private boolean full;
+
+  public SessionTrace() {
+    this(true);
+  }
+
+  private SessionTrace(boolean enabled) {
+    this.enabled = enabled;
+    buffer = new ByteArrayOutputStream(enabled ? 16 * 1024 : 0);
+    out = new DataOutputStream(buffer);
+    if (!enabled) return;
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void record(Source source, String name) {
+    record(source, name, 0, null);
+  }
+
+  public void record(Source source, String name, long value) {
+    record(source, name, value, null);
+  }
+
+  public void record(Source source, String name, long value, String text) {
+    if (enabled) append(source, name, value, text);
+  }
+
+  /** Whether entries are kept; callers can skip building what they would record otherwise. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  private synchronized void append(Source source, String name, long value, String text) {
+    if (full) return;
+    if (buffer.size() >= MAX_BYTES) {
+      Log.w(CLASSTAG, "trace full after " + entryCount + " entries");
+      full = true;
+      return;
+    }
+    long micros = (System.nanoTime() - startNanos) / 1000;
+    try {
+      out.writeByte(source.ordinal());
+      writeVarLong(out, micros - lastMicros);
+      writeString(name);
+      writeVarLong(out, (value << 1) ^ (value >> 63));
+      writeString(text);
+    } catch (IOException e) {
+      // A ByteArrayOutputStream does not throw.
+      throw new IllegalStateException(e);
+    }
+    lastMicros = micros;
+    entryCount++;
+  }
+
+  public synchronized int getEntryCount() {
+    return entryCount;
+  }
+
+  public synchronized byte[] toByteArray() {
+    return buffer.toByteArray();
+  }
+
+  public void writeTo(OutputStream stream) throws IOException {
+    stream.write(toByteArray());
+  }
+
+  /** Saves the trace to the given file, creating its directory if needed. */
+  public void save(File file) throws IOException {
+    File dir = file.getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    try (FileOutputStream stream = new FileOutputStream(file)) {
+      writeTo(stream);
+    }
+    Log.i(CLASSTAG, "saved " + entryCount + " entries to " + file);
+  }
+
+  // 0 for null, the index + 1 of a known string, or the next index + 1 followed by a new string.
+  private void writeString(String value) throws IOException {
+    if (value == null) {
+      writeVarLong(out, 0);
+      return;
+    }
+    Integer index = strings.get(value);
+    if (index != null) {
+      writeVarLong(out, index + 1);
+      return;
+    }
+    index = strings.size();
+    strings.put(value, index);
+    writeVarLong(out, index + 1);
+    out.writeUTF(value);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /** Decodes a trace written by {@link #writeTo(OutputStream)}. */
+  @NonNull
+  public static List<Entry> read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC) throw new IOException("Not a session trace");
+    int version = in.readUnsignedByte();
+    if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+
+    Source[] sources = Source.values();
+    List<String> strings = new ArrayList<>();
+    List<Entry> entries = new ArrayList<>();
+    long micros = 0;
+    while (true) {
+      int source = in.read();
+      if (source < 0) break;
+      if (source >= sources.length) throw new IOException("Unknown source " + source);
+      try {
+        micros += readVarLong(in);
+        String name = readString(in, strings);
+        long zigzag = readVarLong(in);
+        long value = (zigzag >>> 1) ^ -(zigzag & 1);
+        String text = readString(in, strings);
+        entries.add(new Entry(sources[source], micros, name, value, text));
+      } catch (EOFException e) {
+        throw new IOException("Truncated trace after " + entries.size() + " entries", e);
+      }
+    }
+    return entries;
+  }
+
+  private static String readString(DataInputStream in, List<String> strings) throws IOException {
+    int ref = (int) readVarLong(in);
+    if (ref == 0) return null;
+    if (ref <= strings.size()) return strings.get(ref - 1);
+    if (ref != strings.size() + 1) throw new IOException("Bad string reference " + ref);
+    String value = in.readUTF();
+    strings.add(value);
+    return value;
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,459 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.FrameLayout;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.ui.PlayerView;
+
+import com.google.ads.interactivemedia.v3.api.Ad;
+import com.google.ads.interactivemedia.v3.api.AdEvent;
+import com.google.ads.interactivemedia.v3.api.AdPodInfo;
+import com.google.ads.interactivemedia.v3.api.AdsLoader;
+import com.google.ads.interactivemedia.v3.api.AdsManager;
+import com.google.ads.interactivemedia.v3.api.player.AdMediaInfo;
+import com.google.ads.interactivemedia.v3.api.player.VideoAdPlayer;
+import com.truex.adrenderer.TruexAdEvent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Replays a {@link SessionTrace} through {@link VideoPlayerController} and
+ * {@link VideoPlayerWithAdPlayback} against fake IMA and player objects, measuring the time,
+ * allocations and player operations our own code spends on each event.
+ * <p>
+ * The controller is bound to Android views, so replays run in-process on a device or emulator,
+ * e.g. from an instrumentation run. The ads loader, ads manager and player are fakes and no
+ * interactive ad is rendered, so no SDK web view is created, no media is played and no ads are
+ * fetched. Events are fed on the main thread, where the controller handles them, and allocations
+ * are counted there.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class SessionTraceReplayer {
+  private static final String CLASSTAG = SessionTraceReplayer.class.getSimpleName();
+
+  /** What the replayed events of one source and name cost. */
+  public static class EventStats {
+    private final String key;
+    int count;
+    int failures;
+    long totalNanos;
+    long maxNanos;
+    long allocatedBytes;
+    long playerOps;
+    long adsManagerOps;
+
+    EventStats(String key) {
+      this.key = key;
+    }
+
+    public String getKey() { return key; }
+    public int getCount() { return count; }
+    public int getFailures() { return failures; }
+    public long getTotalNanos() { return totalNanos; }
+    public long getMaxNanos() { return maxNanos; }
+    public long getAllocatedBytes() { return allocatedBytes; }
+    public long getPlayerOps() { return playerOps; }
+    public long getAdsManagerOps() { return adsManagerOps; }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return key + ": n=" + count
+        + " avg=" + (count == 0 ? 0 : totalNanos / count / 1000) + "us"
+        + " max=" + maxNanos / 1000 + "us"
+        + " alloc=" + (count == 0 ? 0 : allocatedBytes / count) + "B"
+        + " playerOps=" + playerOps
+        + " adsManagerOps=" + adsManagerOps
+        + (failures > 0 ? " failures=" + failures : "");
+    }
+  }
+
+  public static class Report {
+    private final List<EventStats> events;
+    private final List<Long> breakAllocations;
+    private final int skipped;
+    private final long recordedMicros;
+
+    Report(List<EventStats> events, List<Long> breakAllocations, int skipped, long recordedMicros) {
+      this.events = Collections.unmodifiableList(events);
+      this.breakAllocations = Collections.unmodifiableList(breakAllocations);
+      this.skipped = skipped;
+      this.recordedMicros = recordedMicros;
+    }
+
+    public List<EventStats> getEvents() { return events; }
+
+    /** Bytes allocated by each ad break, from content pause to content resume. */
+    public List<Long> getBreakAllocations() { return breakAllocations; }
+
+    /** Entries this build does not know, e.g. event types of a newer SDK. */
+    public int getSkipped() { return skipped; }
+
+    public long getRecordedMicros() { return recordedMicros; }
+
+    @NonNull
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder();
+      text.append("replayed ").append(recordedMicros / 1000).append("ms of session, skipped ")
+        .append(skipped).append(", break allocations ").append(breakAllocations);
+      for (EventStats stats : events) {
+        text.append('\n').append(stats);
+      }
+      return text.toString();
+    }
+  }
+
+  /** Counts the calls made on a fake and answers them with defaults. */
+  private static class FakeHandler implements InvocationHandler {
+    private final String name;
+    long calls;
+
+    FakeHandler(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "equals": return proxy == args[0];
+        case "hashCode": return System.identityHashCode(proxy);
+        case "toString": return name;
+      }
+      calls++;
+      return answer(method, args);
+    }
+
+    Object answer(Method method, Object[] args) {
+      return defaultValue(method.getReturnType());
+    }
+  }
+
+  private final Context context;
+  private final FakeHandler playerHandler = new FakeHandler("ReplayPlayer");
+  private final FakeHandler adsLoaderHandler = new FakeHandler("ReplayAdsLoader");
+  private final FakeHandler adsManagerHandler = new FakeHandler("ReplayAdsManager") {
+    @Override
+    Object answer(Method method, Object[] args) {
+      if (method.getName().equals("getAdCuePoints")) return cuePoints;
+      return super.answer(method, args);
+    }
+  };
+
+  private final Map<String, AdMediaInfo> adMediaInfos = new HashMap<>();
+  private List<Float> cuePoints = Collections.emptyList();
+  private List<AdBreak> adMarkers = Collections.emptyList();
+
+  private VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private VideoPlayerController controller;
+  private VideoAdPlayer videoAdPlayer;
+  private Player.Listener playerListener;
+
+  private SessionTraceReplayer(Context context) {
+    this.context = context;
+  }
+
+  public static Report replay(Context context, File trace) throws IOException {
+    try (InputStream stream = new FileInputStream(trace)) {
+      return replay(context, stream);
+    }
+  }
+
+  public static Report replay(Context context, InputStream trace) throws IOException {
+    return replay(context, SessionTrace.read(trace));
+  }
+
+  /**
+   * Replays the given decoded entries on the main thread. Called from another thread, it waits
+   * for the replay to finish there.
+   */
+  public static Report replay(Context context, List<SessionTrace.Entry> entries) {
+    if (Looper.myLooper() == Looper.getMainLooper()) return replayOnMainThread(context, entries);
+    FutureTask<Report> task = new FutureTask<>(() -> replayOnMainThread(context, entries));
+    new Handler(Looper.getMainLooper()).post(task);
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted waiting for the replay", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static Report replayOnMainThread(Context context, List<SessionTrace.Entry> entries) {
+    SessionTraceReplayer replayer = new SessionTraceReplayer(context);
+    replayer.setUp();
+    try {
+      Report report = replayer.run(entries);
+      Log.i(CLASSTAG, report.toString());
+      return report;
+    } finally {
+      replayer.tearDown();
+    }
+  }
+
+  private void setUp() {
+    ExoPlayer player = (ExoPlayer) Proxy.newProxyInstance(
+      ExoPlayer.class.getClassLoader(), new Class<?>[] {ExoPlayer.class}, playerHandler);
+
+    // The same view hierarchy the layout inflates, built in code around the fake player.
+    videoPlayerWithAdPlayback = new VideoPlayerWithAdPlayback(context);
+    PlayerView playerView = new PlayerView(context);
+    playerView.setId(R.id.player_view);
+    videoPlayerWithAdPlayback.addView(playerView);
+    FrameLayout adUiContainer = new FrameLayout(context);
+    adUiContainer.setId(R.id.adUiContainer);
+    videoPlayerWithAdPlayback.addView(adUiContainer);
+    videoPlayerWithAdPlayback.initForReplay(player);
+
+    controller = new VideoPlayerController(context, videoPlayerWithAdPlayback, new FrameLayout(context),
+      url -> {}, fake(AdsLoader.class, adsLoaderHandler));
+    controller.setReplayMode(true);
+    videoAdPlayer = videoPlayerWithAdPlayback.getVideoAdPlayer();
+    playerListener = videoPlayerWithAdPlayback.getPlayerListener();
+  }
+
+  private void tearDown() {
+    controller.destroy();
+  }
+
+  @SuppressWarnings("deprecation")
+  private Report run(List<SessionTrace.Entry> entries) {
+    Map<String, EventStats> statsByKey = new LinkedHashMap<>();
+    List<Long> breakAllocations = new ArrayList<>();
+    long breakBytes = -1; // -1 while content plays
+    int skipped = 0;
+
+    Debug.startAllocCounting();
+    try {
+      for (SessionTrace.Entry entry : entries) {
+        String key = entry.source + "/" + entry.name;
+        EventStats stats = statsByKey.get(key);
+        if (stats == null) {
+          stats = new EventStats(key);
+          statsByKey.put(key, stats);
+        }
+
+        long playerOpsBefore = playerHandler.calls;
+        long adsManagerOpsBefore = adsManagerHandler.calls;
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        try {
+          if (!dispatch(entry)) {
+            skipped++;
+            continue;
+          }
+        } catch (RuntimeException e) {
+          Log.w(CLASSTAG, key + " failed: " + e);
+          stats.failures++;
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = Debug.getThreadAllocSize();
+        stats.allocatedBytes += allocated;
+        if (entry.source == SessionTrace.Source.AD_EVENT
+          && entry.name.equals(AdEvent.AdEventType.CONTENT_PAUSE_REQUESTED.name())) {
+          breakBytes = 0;
+        }
+        if (breakBytes >= 0) {
+          breakBytes += allocated;
+          if (entry.source == SessionTrace.Source.AD_EVENT
+            && entry.name.equals(AdEvent.AdEventType.CONTENT_RESUME_REQUESTED.name())) {
+            breakAllocations.add(breakBytes);
+            breakBytes = -1;
+          }
+        }
+        stats.count++;
+        stats.totalNanos += nanos;
+        stats.maxNanos = Math.max(stats.maxNanos, nanos);
+        stats.playerOps += playerHandler.calls - playerOpsBefore;
+        stats.adsManagerOps += adsManagerHandler.calls - adsManagerOpsBefore;
+      }
+    } finally {
+      Debug.stopAllocCounting();
+    }
+
+    List<EventStats> events = new ArrayList<>();
+    for (EventStats stats : statsByKey.values()) {
+      if (stats.count > 0 || stats.failures > 0) events.add(stats);
+    }
+    long recordedMicros = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).timeMicros;
+    return new Report(events, breakAllocations, skipped, recordedMicros);
+  }
+
+  // Feeds one entry to the code that handled it when it was recorded; false if it is unknown.
+  private boolean dispatch(SessionTrace.Entry entry) {
+    switch (entry.source) {
+      case SESSION:
+        switch (entry.name) {
+          case "cuePoints":
+            cuePoints = parseCuePoints(entry.text);
+            adMarkers = AdBreak.createAdBreaks(cuePoints);
+            controller.attachAdsManager((AdsManager) Proxy.newProxyInstance(
+              AdsManager.class.getClassLoader(), new Class<?>[] {AdsManager.class}, adsManagerHandler));
+            return true;
+          case "contentUrl":
+            controller.setContentVideo(entry.text);
+            return true;
+          // Polls made by IMA and the player UI, which only simulated sessions contain.
+          case "contentProgress":
+            videoPlayerWithAdPlayback.getContentProgressProvider().getContentProgress();
+            return true;
+          case "adProgress":
+            videoAdPlayer.getAdProgress();
+            return true;
+          case "adMarkers":
+            videoPlayerWithAdPlayback.setAdMarkers(adMarkers);
+            return true;
+          default:
+            return false;
+        }
+
+      case AD_EVENT:
+        AdEvent.AdEventType type = enumValue(AdEvent.AdEventType.class, entry.name);
+        if (type == null) return false;
+        Ad ad = entry.text == null && entry.value < 0 ? null : fakeAd((int) entry.value, entry.text);
+        controller.onAdEvent(fakeAdEvent(type, ad));
+        return true;
+
+      case AD_PLAYER:
+        AdMediaInfo info = adMediaInfo(entry.text);
+        switch (entry.name) {
+          case "loadAd": videoAdPlayer.loadAd(info, fakePodInfo((int) entry.value)); return true;
+          case "playAd": videoAdPlayer.playAd(info); return true;
+          case "pauseAd": videoAdPlayer.pauseAd(info); return true;
+          case "stopAd": videoAdPlayer.stopAd(info); return true;
+          default: return false;
+        }
+
+      case PLAYER:
+        switch (entry.name) {
+          case "isPlaying": playerListener.onIsPlayingChanged(entry.value != 0); return true;
+          case "state": playerListener.onPlaybackStateChanged((int) entry.value); return true;
+          case "transition": playerListener.onMediaItemTransition(null, (int) entry.value); return true;
+          case "error":
+            playerListener.onPlayerError(new PlaybackException("replay", null, (int) entry.value));
+            return true;
+          default: return false;
+        }
+
+      case TRUEX:
+        TruexAdEvent event = enumValue(TruexAdEvent.class, entry.name);
+        if (event == null) return false;
+        Map<String, Object> data = new HashMap<>();
+        if (entry.text != null) data.put("url", entry.text);
+        controller.onTruexAdEvent(event, data);
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  // The same url must map to the same instance, as the player matches ads by equality.
+  private AdMediaInfo adMediaInfo(String url) {
+    AdMediaInfo info = adMediaInfos.get(url);
+    if (info == null) {
+      info = new AdMediaInfo(url == null ? "" : url);
+      adMediaInfos.put(url, info);
+    }
+    return info;
+  }
+
+  private static AdEvent fakeAdEvent(AdEvent.AdEventType type, Ad ad) {
+    return fake(AdEvent.class, new FakeHandler("ReplayAdEvent") {
+      @Override
+      Object answer(Method method, Object[] args) {
+        switch (method.getName()) {
+          case "getType": return type;
+          case "getAd": return ad;
+          default: return super.answer(method, args);
+        }
+      }
+    });
+  }
+
+  private static Ad fakeAd(int podIndex, String adSystem) {
+    AdPodInfo podInfo = fakePodInfo(podIndex);
+    return fake(Ad.class, new FakeHandler("ReplayAd") {
+      @Override
+      Object answer(Method method, Object[] args) {
+        switch (method.getName()) {
+          case "getAdPodInfo": return podInfo;
+          case "getAdSystem": return adSystem == null ? "" : adSystem;
+          case "getAdId": return "replay";
+          case "getTraffickingParameters": return "{}";
+          default: return super.answer(method, args);
+        }
+      }
+    });
+  }
+
+  private static AdPodInfo fakePodInfo(int podIndex) {
+    return fake(AdPodInfo.class, new FakeHandler("ReplayAdPodInfo") {
+      @Override
+      Object answer(Method method, Object[] args) {
+        if (method.getName().equals("getPodIndex")) return podIndex;
+        return super.answer(method, args);
+      }
+    });
+  }
+
+  private static <T> T fake(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  private static List<Float> parseCuePoints(String text) {
+    List<Float> cuePoints = new ArrayList<>();
+    if (text == null || text.isEmpty()) return cuePoints;
+    for (String value : text.split(",")) {
+      cuePoints.add(Float.parseFloat(value));
+    }
+    return cuePoints;
+  }
+
+  private static <E extends Enum<E>> E enumValue(Class<E> type, String name) {
+    try {
+      return Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == void.class) return null;
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (type == float.class) return 0f;
+    if (type == double.class) return 0d;
+    if (type == short.class) return (short) 0;
+    if (type == byte.class) return (byte) 0;
+    return (char) 0;
+  }
+}
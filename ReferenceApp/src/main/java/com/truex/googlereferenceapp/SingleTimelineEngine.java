@@ -0,0 +1,232 @@
+package com.truex.googlereferenceapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.ima.ImaAdsLoader;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.media3.exoplayer.source.MediaSource;
+
+import com.google.ads.interactivemedia.v3.api.Ad;
+import com.google.ads.interactivemedia.v3.api.AdEvent;
+import com.google.ads.interactivemedia.v3.api.ImaSdkSettings;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Playback engine that puts content and ads on a single ExoPlayer timeline through media3's
+ * {@link ImaAdsLoader} and AdsMediaSource, so that break transitions are gapless and decoders are
+ * reused. Interactive ads are intercepted: the player pauses while the shared
+ * {@link InteractiveAdSession} runs them, then either the whole pod is skipped on credit or only
+ * the placeholder ad, so the fallback ads play.
+ */
+@OptIn(markerClass = UnstableApi.class)
+class SingleTimelineEngine {
+  private static final String CLASSTAG = SingleTimelineEngine.class.getSimpleName();
+
+  private final VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+  private final InteractiveAdSession interactiveAd;
+  private final CreditLedger creditLedger;
+
+  private final ImaAdsLoader imaAdsLoader;
+  private final InterceptingAdsLoader adsLoader;
+
+  private String contentVideoUrl;
+  private String adTagUrl;
+  private String adTagResponse;
+
+  // The content with its ads, once requested; prepared again on a rebuilt player.
+  private MediaItem mediaItem;
+
+  // Where the intercepted interactive placeholder ad sits on the timeline.
+  private int interactiveAdGroupIndex = C.INDEX_UNSET;
+  private int interactiveAdIndexInAdGroup = C.INDEX_UNSET;
+
+  SingleTimelineEngine(
+      Context context,
+      VideoPlayerWithAdPlayback videoPlayerWithAdPlayback,
+      ImaSdkSettings imaSdkSettings,
+      InteractiveAdSession interactiveAd,
+      CreditLedger creditLedger) {
+    this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
+    this.interactiveAd = interactiveAd;
+    this.creditLedger = creditLedger;
+
+    // The whole timeline's ads are set up once, so the media choice is made for the session start.
+    AdRenderingSettingsProvider adRenderingSettings = new AdRenderingSettingsProvider(context);
+    imaAdsLoader = new ImaAdsLoader.Builder(context)
+      .setImaSdkSettings(imaSdkSettings)
+      .setAdMediaMimeTypes(adRenderingSettings.getMimeTypes())
+      .setMaxMediaBitrate(adRenderingSettings.getBitrateCapKbps() * 1000)
+      .setMediaLoadTimeoutMs(adRenderingSettings.getLoadVideoTimeoutMs())
+      .setAdEventListener(this::onAdEvent)
+      .setAdErrorListener(adErrorEvent -> Log.w(CLASSTAG, "Ad Error: " + adErrorEvent.getError()))
+      .build();
+    adsLoader = new InterceptingAdsLoader(imaAdsLoader);
+    videoPlayerWithAdPlayback.addPlayerBinding(playerBinding);
+  }
+
+  // The ads loader must never hold a released player. A rebuilt one is prepared with the same
+  // ads, which ImaAdsLoader picks up where they were, at the content position the view restores.
+  private final VideoPlayerWithAdPlayback.PlayerBinding playerBinding = new VideoPlayerWithAdPlayback.PlayerBinding() {
+    @Override
+    public void onPlayerBuilt(@NonNull ExoPlayer player) {
+      adsLoader.setPlayer(player);
+      if (mediaItem != null) videoPlayerWithAdPlayback.prepareMediaSource(createMediaSource(mediaItem));
+    }
+
+    @Override
+    public void onPlayerReleasing(@NonNull ExoPlayer player) {
+      adsLoader.setPlayer(null);
+    }
+  };
+
+  void setContentVideo(String videoPath) {
+    contentVideoUrl = videoPath;
+  }
+
+  void setAdTagUrl(String adTagUrl) {
+    this.adTagUrl = adTagUrl;
+  }
+
+  void setAdTagResponse(String adTagResponse) {
+    this.adTagResponse = adTagResponse;
+  }
+
+  void requestAndPlayAds() {
+    creditLedger.reset();
+    MediaItem.Builder mediaItem = new MediaItem.Builder().setUri(contentVideoUrl);
+    if (adTagResponse != null && !adTagResponse.isEmpty()) {
+      // ImaAdsLoader treats a data: uri as the ads response itself.
+      Uri adTagUri = Util.getDataUriForString("text/xml", adTagResponse);
+      mediaItem.setAdsConfiguration(new MediaItem.AdsConfiguration.Builder(adTagUri).build());
+    } else if (adTagUrl != null && !adTagUrl.isEmpty()) {
+      mediaItem.setAdsConfiguration(new MediaItem.AdsConfiguration.Builder(Uri.parse(adTagUrl)).build());
+    }
+    this.mediaItem = mediaItem.build();
+    videoPlayerWithAdPlayback.playMediaSource(createMediaSource(this.mediaItem));
+  }
+
+  private MediaSource createMediaSource(MediaItem mediaItem) {
+    return new DefaultMediaSourceFactory(
+        PlaybackInfrastructure.get(videoPlayerWithAdPlayback.getContext()).createDataSourceFactory())
+      .setLocalAdInsertionComponents(adsConfiguration -> adsLoader, videoPlayerWithAdPlayback.getPlayerView())
+      .createMediaSource(mediaItem);
+  }
+
+  private void onAdEvent(AdEvent adEvent) {
+    Ad ad = adEvent.getAd();
+    if (adEvent.getType() != AdEvent.AdEventType.AD_PROGRESS) {
+      Log.i(CLASSTAG, "Ad Event: " + (ad == null ? null : ad.getAdId()) + ": " + adEvent.getType());
+    }
+    if (adEvent.getType() == AdEvent.AdEventType.STARTED && ad != null
+        && (ad.getAdSystem().contains("trueX") || ad.getAdSystem().contains("IDVx"))) {
+      try {
+        AdType adType = ad.getAdSystem().contains("IDVx") ? AdType.IDVX : AdType.TRUEX;
+        playInteractiveAd(new JSONObject(ad.getTraffickingParameters()), adType);
+      } catch (JSONException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void playInteractiveAd(JSONObject params, AdType adType) {
+    ExoPlayer player = videoPlayerWithAdPlayback.getPlayer();
+    if (player == null) {
+      // Released meanwhile, e.g. trimmed or its decoder slot revoked; only a player knows where
+      // the ad sits on the timeline, so the pod's fallback ads play once it is rebuilt.
+      Log.w(CLASSTAG, "interactive ad started without a player, playing fallback ads");
+      return;
+    }
+    player.pause();
+    interactiveAdGroupIndex = player.getCurrentAdGroupIndex();
+    interactiveAdIndexInAdGroup = player.getCurrentAdIndexInAdGroup();
+    interactiveAd.start(params, adType, interactiveAdListener);
+  }
+
+  private final InteractiveAdSession.Listener interactiveAdListener = new InteractiveAdSession.Listener() {
+    @Override
+    public void onCredit() {
+      List<AdBreak> adBreaks = adBreaksOnTimeline();
+      creditLedger.credit(adBreaks, interactiveAdGroupIndex);
+      // Covered breaks ahead are skipped on the timeline right away, before their ads are loaded.
+      for (int i = interactiveAdGroupIndex + 1; i < adBreaks.size(); i++) {
+        if (!creditLedger.isCovered(i)) continue;
+        adsLoader.skipAdGroup(i);
+        creditLedger.onBreakSkipped(adBreaks.get(i));
+      }
+    }
+
+    @Override
+    public void onEnded(boolean credit) {
+      videoPlayerWithAdPlayback.enableControls();
+      if (interactiveAdGroupIndex != C.INDEX_UNSET) {
+        if (credit) {
+          // The user earned the ad free pod: skip the rest of it.
+          adsLoader.skipAdGroup(interactiveAdGroupIndex);
+          List<AdBreak> adBreaks = adBreaksOnTimeline();
+          if (interactiveAdGroupIndex < adBreaks.size()) {
+            creditLedger.onBreakSkipped(adBreaks.get(interactiveAdGroupIndex));
+          }
+        } else {
+          // Skip only the placeholder so the fallback ads of the pod play.
+          adsLoader.skipAd(interactiveAdGroupIndex, interactiveAdIndexInAdGroup);
+        }
+      }
+      interactiveAdGroupIndex = C.INDEX_UNSET;
+      interactiveAdIndexInAdGroup = C.INDEX_UNSET;
+      videoPlayerWithAdPlayback.play();
+    }
+  };
+
+  // The ad groups of the timeline as breaks, so the credit ledger indexes them like the manual
+  // engine's breaks.
+  private List<AdBreak> adBreaksOnTimeline() {
+    List<AdBreak> adBreaks = new ArrayList<>();
+    ExoPlayer player = videoPlayerWithAdPlayback.getPlayer();
+    if (player == null || player.getCurrentTimeline().isEmpty()) return adBreaks;
+    Timeline.Period period = player.getCurrentTimeline().getPeriod(0, new Timeline.Period());
+    for (int i = 0; i < period.getAdGroupCount(); i++) {
+      long timeUs = period.getAdGroupTimeUs(i);
+      AdBreak adBreak = new AdBreak();
+      // A postroll sits at the end of the source; the ledger takes it as a negative position.
+      adBreak.contentPosition = timeUs == C.TIME_END_OF_SOURCE ? -1 : Util.usToMs(timeUs);
+      adBreaks.add(adBreak);
+    }
+    return adBreaks;
+  }
+
+  void pause() {
+    videoPlayerWithAdPlayback.pause();
+  }
+
+  void resume() {
+    // The interactive ad resumes itself; the player under it stays paused.
+    if (interactiveAd.isActive()) {
+      videoPlayerWithAdPlayback.restorePlayer();
+    } else {
+      videoPlayerWithAdPlayback.play();
+    }
+  }
+
+  void destroy() {
+    interactiveAd.stop();
+    videoPlayerWithAdPlayback.removePlayerBinding(playerBinding);
+    adsLoader.setPlayer(null);
+    videoPlayerWithAdPlayback.release();
+    adsLoader.release();
+  }
+}
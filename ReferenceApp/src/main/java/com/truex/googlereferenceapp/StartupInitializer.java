@@ -0,0 +1,120 @@
+package com.truex.googlereferenceapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the app's cold start setup as stages with dependencies. Independent stages run in parallel
+ * on background threads; main thread stages, such as the final one, are posted to the main looper
+ * once everything they depend on is done. Each stage is timed relative to process start.
+ * <p>
+ * Stages only warm up lazily created singletons, so a stage that fails or has not finished yet
+ * just leaves that work to its first user.
+ */
+public class StartupInitializer {
+  private static final String CLASSTAG = StartupInitializer.class.getSimpleName();
+
+  private static final int BACKGROUND_THREADS = 3;
+
+  private static class Stage {
+    final String name;
+    final boolean mainThread;
+    final Runnable task;
+    final List<Stage> dependents = new ArrayList<>();
+    int pendingDependencies;
+
+    long startMs = -1;
+    long durationMs = -1;
+    boolean failed;
+
+    Stage(String name, boolean mainThread, Runnable task) {
+      this.name = name;
+      this.mainThread = mainThread;
+      this.task = task;
+    }
+  }
+
+  private final Map<String, Stage> stages = new LinkedHashMap<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private ExecutorService executor;
+  private int remaining;
+
+  /** Adds a stage that runs once all the named stages are done, which must be added before it. */
+  public StartupInitializer addStage(String name, boolean mainThread, Runnable task, String... dependsOn) {
+    if (stages.containsKey(name)) throw new IllegalArgumentException("Duplicate stage " + name);
+    Stage stage = new Stage(name, mainThread, task);
+    for (String dependency : dependsOn) {
+      Stage required = stages.get(dependency);
+      if (required == null) throw new IllegalArgumentException(name + " depends on unknown stage " + dependency);
+      required.dependents.add(stage);
+    }
+    stage.pendingDependencies = dependsOn.length;
+    stages.put(name, stage);
+    return this;
+  }
+
+  public synchronized void start() {
+    if (executor != null) throw new IllegalStateException("Already started");
+    executor = Executors.newFixedThreadPool(BACKGROUND_THREADS);
+    remaining = stages.size();
+    for (Stage stage : stages.values()) {
+      if (stage.pendingDependencies == 0) dispatch(stage);
+    }
+  }
+
+  private void dispatch(Stage stage) {
+    Runnable run = () -> runStage(stage);
+    if (stage.mainThread) {
+      mainHandler.post(run);
+    } else {
+      executor.execute(run);
+    }
+  }
+
+  private void runStage(Stage stage) {
+    long start = SystemClock.elapsedRealtime();
+    try {
+      stage.task.run();
+    } catch (RuntimeException e) {
+      Log.w(CLASSTAG, stage.name + " failed: " + e);
+      stage.failed = true;
+    }
+    onStageDone(stage, start, SystemClock.elapsedRealtime() - start);
+  }
+
+  private synchronized void onStageDone(Stage stage, long startMs, long durationMs) {
+    stage.startMs = startMs - Process.getStartElapsedRealtime();
+    stage.durationMs = durationMs;
+    for (Stage dependent : stage.dependents) {
+      if (--dependent.pendingDependencies == 0) dispatch(dependent);
+    }
+    if (--remaining == 0) {
+      executor.shutdown();
+      Log.i(CLASSTAG, report());
+    }
+  }
+
+  /** Each stage's start since process start and its duration, in milliseconds. */
+  @NonNull
+  public synchronized String report() {
+    StringBuilder text = new StringBuilder("startup:");
+    for (Stage stage : stages.values()) {
+      text.append(' ').append(stage.name).append(stage.mainThread ? "(main)" : "")
+        .append(" @").append(stage.startMs).append('+').append(stage.durationMs).append("ms")
+        .append(stage.failed ? " failed" : "");
+    }
+    return text.toString();
+  }
+}
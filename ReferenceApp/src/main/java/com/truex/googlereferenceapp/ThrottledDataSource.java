@@ -0,0 +1,123 @@
+package com.truex.googlereferenceapp;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps the read rate of a wrapped data source, so background downloads leave bandwidth for
+ * playback. Reads block on the calling (loader) thread when ahead of the allowed rate. The data
+ * sources of one factory share the rate, however many downloads run in parallel.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class ThrottledDataSource implements DataSource {
+  public static class Factory implements DataSource.Factory {
+    private final DataSource.Factory upstreamFactory;
+    private final Pacer pacer;
+
+    public Factory(DataSource.Factory upstreamFactory, long bytesPerSecond) {
+      this.upstreamFactory = upstreamFactory;
+      pacer = new Pacer(bytesPerSecond);
+    }
+
+    @NonNull
+    @Override
+    public DataSource createDataSource() {
+      return new ThrottledDataSource(upstreamFactory.createDataSource(), pacer);
+    }
+  }
+
+  /**
+   * A token bucket for one rate: each read reserves its bytes, and waits until the bucket would
+   * have refilled them.
+   */
+  static class Pacer {
+    // Idle time earns at most this much credit, so that a download starting or resuming does not
+    // burst past the rate.
+    private static final long MAX_BURST_NS = 100_000_000L;
+
+    final long bytesPerSecond;
+    // When every byte reserved so far is allowed to have been read.
+    private long allowedAtNs;
+
+    Pacer(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Reserves the bytes and returns how long to wait before reading on, in nanoseconds. */
+    synchronized long reserve(int bytes) {
+      long now = SystemClock.elapsedRealtimeNanos();
+      allowedAtNs = Math.max(allowedAtNs, now - MAX_BURST_NS) + bytes * 1_000_000_000L / bytesPerSecond;
+      return allowedAtNs - now;
+    }
+  }
+
+  private final DataSource upstream;
+  private final Pacer pacer;
+
+  public ThrottledDataSource(DataSource upstream, long bytesPerSecond) {
+    this(upstream, new Pacer(bytesPerSecond));
+  }
+
+  private ThrottledDataSource(DataSource upstream, Pacer pacer) {
+    this.upstream = upstream;
+    this.pacer = pacer;
+  }
+
+  @Override
+  public void addTransferListener(@NonNull TransferListener transferListener) {
+    upstream.addTransferListener(transferListener);
+  }
+
+  @Override
+  public long open(@NonNull DataSpec dataSpec) throws IOException {
+    return upstream.open(dataSpec);
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    // Never read more than a tenth of a second's worth at once, so the pacing stays smooth.
+    int read = upstream.read(buffer, offset, (int) Math.min(length, Math.max(1, pacer.bytesPerSecond / 10)));
+    if (read > 0) {
+      long aheadNs = pacer.reserve(read);
+      if (aheadNs > 0) {
+        try {
+          Thread.sleep(aheadNs / 1_000_000, (int) (aheadNs % 1_000_000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+    return read;
+  }
+
+  @Nullable
+  @Override
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @NonNull
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void close() throws IOException {
+    upstream.close();
+  }
+}
@@ -0,0 +1,45 @@
+package com.truex.googlereferenceapp;
+
+import android.util.Log;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509TrustManager;
+
+// Useful for working with older, expired https assets that are difficult for us to update.
+final class TrustAll {
+  private static final String CLASSTAG = TrustAll.class.getSimpleName();
+
+  static final X509TrustManager TRUST_MANAGER = new X509TrustManager() {
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+      // Not implemented
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+      // Not implemented
+    }
+  };
+
+  private TrustAll() {}
+
+  static SSLContext createSslContext() {
+    try {
+      SSLContext sc = SSLContext.getInstance("TLS");
+      sc.init(null, new X509TrustManager[] { TRUST_MANAGER }, new java.security.SecureRandom());
+      return sc;
+    } catch (KeyManagementException | NoSuchAlgorithmException e) {
+      Log.e(CLASSTAG, e.toString());
+      return null;
+    }
+  }
+}
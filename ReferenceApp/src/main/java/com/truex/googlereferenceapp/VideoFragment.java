@@ -4,14 +4,13 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.UiModeManager;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -20,17 +19,53 @@ import android.view.ViewGroup;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
+import androidx.media3.common.Player;
+import androidx.media3.exoplayer.ExoPlayer;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
 
 /** The main fragment for displaying video content. */
 public class VideoFragment extends Fragment {
   private static final String CLASSTAG = VideoFragment.class.getSimpleName();
 
+  static final String CONTENT_URL = "https://ctv.truex.com/assets/reference-app-stream-no-ads-720p.mp4";
+
+  // Live breaks have no pod of their own in the sample VMAP, so they all get the mid-roll's.
+  private static final String LIVE_POD_BREAK_ID = "midroll-1";
+
   private VideoPlayerController videoPlayerController;
+  private VideoPlayerWithAdPlayback videoPlayerWithAdPlayback;
+
+  private final MemoryTrimPolicy memoryTrimPolicy = new MemoryTrimPolicy();
+
+  // When a resume after a trim started, until the player is ready to play again; 0 if none.
+  private long trimmedResumeStartMs;
+  private final Player.Listener trimmedResumeListener = new Player.Listener() {
+    @Override
+    public void onPlaybackStateChanged(int playbackState) {
+      if (playbackState == Player.STATE_READY) onTrimmedResumeReady();
+    }
+  };
+
+  private CustomTabsPopup customTabsPopup;
+
+  // Ensure we refer to CTV vs mobile ads.
+  static int vmapResource(Context context) {
+    return isLeanback(context) ? R.raw.ctv_truex_vmap : R.raw.mobile_truex_vmap;
+  }
+
+  /** The same schedule as {@link #vmapResource}, precompiled at build time. */
+  static String scheduleAsset(Context context) {
+    return isLeanback(context) ? "ctv_truex_vmap.bin" : "mobile_truex_vmap.bin";
+  }
+
+  private static boolean isLeanback(Context context) {
+    return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_LEANBACK);
+  }
 
   public boolean isTouchDevice() {
     Context context = getContext();
@@ -86,13 +121,54 @@ public class VideoFragment extends Fragment {
       return;
     }
 
-    videoPlayerController.setContentVideo("https://ctv.truex.com/assets/reference-app-stream-no-ads-720p.mp4");
+    boolean live = !BuildConfig.LIVE_STREAM_URL.isEmpty();
+    String contentUrl = live ? BuildConfig.LIVE_STREAM_URL : CONTENT_URL;
+    videoPlayerController.setContentVideo(contentUrl);
 
-    // Use a sample vast xml for demonstration. Ensure we refer to CTV vs mobile ads.
+    // Take over whatever the home page got ready while the play button had focus.
+    PlaybackPrewarm.Prewarmed prewarmed = PlaybackPrewarm.get().adopt(contentUrl);
+
+    // Use a sample vast xml for demonstration.
     //videoPlayerController.setAdTagUrl("https://pubads.g.doubleclick.net/gampad/ads?sz=640x480&iu=/124319096/external/ad_rule_samples&ciu_szs=300x250&ad_rule=1&impl=s&gdfp_req=1&env=vp&output=vmap&unviewed_position_start=1&cust_params=deployment%3Ddevsite%26sample_ar%3Dpremidpost&cmsid=496&vid=short_onecue&correlator=");
-    boolean isTV = getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_LEANBACK);
-    int vmapXmlResource = isTV ? R.raw.ctv_truex_vmap : R.raw.mobile_truex_vmap;
-    videoPlayerController.setAdTagResponse(getRawFileContents(vmapXmlResource));
+    Context context = requireContext();
+    if (live) {
+      JustInTimeAds.VmapPodSource vmap = new JustInTimeAds.VmapPodSource(context, vmapResource(context));
+      videoPlayerController.setLiveAds(new JustInTimeAds(context,
+        (breakId, durationMs) -> vmap.fetchPod(LIVE_POD_BREAK_ID, durationMs)));
+    } else if (BuildConfig.JUST_IN_TIME_ADS) {
+      // Only the compiled schedule is needed up front; each break's pod is fetched as it nears.
+      AdSchedule schedule = prewarmed != null ? prewarmed.adSchedule
+        : AdSchedule.load(context, scheduleAsset(context));
+      videoPlayerController.setJustInTimeAds(new JustInTimeAds(context, schedule,
+        new JustInTimeAds.VmapPodSource(context, vmapResource(context))));
+    } else {
+      videoPlayerController.setAdTagResponse(prewarmed != null ? prewarmed.vmapXml
+        : readRawResource(context, vmapResource(context)));
+    }
+
+    // Warm up connections to the content and ad hosts while the ads request is made, using the
+    // same schedule precompiled at build time.
+    Context appContext = context.getApplicationContext();
+    String scheduleAsset = scheduleAsset(context);
+    AdSchedule prewarmedSchedule = prewarmed != null ? prewarmed.adSchedule : null;
+    CreditLedger creditLedger = videoPlayerController.getCreditLedger();
+    OfflineDownloads offlineDownloads = BuildConfig.DEBUG ? OfflineDownloads.get(appContext) : null;
+    PlaybackInfrastructure.get(appContext).getWorkerExecutor().execute(() -> {
+      try {
+        AdSchedule schedule = prewarmedSchedule != null ? prewarmedSchedule
+          : AdSchedule.load(appContext, scheduleAsset);
+        creditLedger.setAdSchedule(schedule);
+        Set<String> origins = schedule.getOrigins();
+        origins.addAll(HttpStack.extractOrigins(contentUrl));
+        HttpStack.get().preconnect(origins);
+        // Debug builds report how much of what is about to play was downloaded for offline use.
+        if (offlineDownloads != null) {
+          Log.i(CLASSTAG, "offline: " + offlineDownloads.verify(contentUrl, schedule));
+        }
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "preconnect skipped: " + e);
+      }
+    });
 
     final Handler handler = new Handler(Looper.getMainLooper());
     handler.postDelayed(new Runnable() {
@@ -107,19 +183,43 @@ public class VideoFragment extends Fragment {
 
   private void initUi() throws IOException {
     View rootView = getView();
-    VideoPlayerWithAdPlayback videoPlayerWithAdPlayback = rootView.findViewById(R.id.videoPlayerWithAdPlayback);
+    videoPlayerWithAdPlayback = rootView.findViewById(R.id.videoPlayerWithAdPlayback);
     ViewGroup videoContainer = rootView.findViewById(R.id.videoContainer);
 
+    // Bound early so the browser is warm by the time an ad opens a popup.
+    customTabsPopup = new CustomTabsPopup(requireContext());
+    customTabsPopup.bind();
+
     videoPlayerController =
       new VideoPlayerController(
         this.getActivity(),
         videoPlayerWithAdPlayback,
         videoContainer,
         getString(R.string.ad_ui_lang),
-        (popupUrl) -> {
-          Intent browserIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(popupUrl));
-          startActivity(browserIntent);
-        });
+        new PopupCallback() {
+          @Override
+          public void onPopup(String url) {
+            customTabsPopup.launch(requireActivity(), url);
+          }
+
+          @Override
+          public void onInteractiveAdStarted() {
+            customTabsPopup.prepareForPopup();
+          }
+        },
+        PlaybackEngine.valueOf(BuildConfig.PLAYBACK_ENGINE));
+
+    memoryTrimPolicy.addTrimmable(videoPlayerController);
+    memoryTrimPolicy.addTrimmable(ImageLoader.get(requireContext()));
+    memoryTrimPolicy.addTrimmable(RendererWarmup.get(requireContext()));
+
+    // Live streams are not scrubbed; the thumbnails are for the sample video.
+    if (!BuildConfig.SEEK_THUMBNAILS_URL.isEmpty() && BuildConfig.LIVE_STREAM_URL.isEmpty()) {
+      SeekThumbnails seekThumbnails = new SeekThumbnails(requireContext(), BuildConfig.SEEK_THUMBNAILS_URL);
+      videoPlayerWithAdPlayback.setSeekThumbnails(seekThumbnails);
+      memoryTrimPolicy.addTrimmable(seekThumbnails);
+    }
+    requireContext().registerComponentCallbacks(memoryTrimPolicy);
 
     loadVideo();
   }
@@ -128,6 +228,8 @@ public class VideoFragment extends Fragment {
 
   @Override
   public void onPause() {
+    // A resume that did not get as far as a ready player is timed again on the next one.
+    stopTimingTrimmedResume();
     if (videoPlayerController != null) {
       videoPlayerController.pause();
     }
@@ -137,39 +239,53 @@ public class VideoFragment extends Fragment {
   @Override
   public void onResume() {
     if (videoPlayerController != null) {
+      // Coming back from a trim costs until the rebuilt or re-prepared player is ready again.
+      if (memoryTrimPolicy.getTrimmedTier() != null) {
+        trimmedResumeStartMs = SystemClock.elapsedRealtime();
+        videoPlayerWithAdPlayback.addPlayerListener(trimmedResumeListener);
+      }
       videoPlayerController.resume();
+      ExoPlayer player = videoPlayerWithAdPlayback.getPlayer();
+      if (player != null && player.getPlaybackState() == Player.STATE_READY) onTrimmedResumeReady();
     }
     super.onResume();
   }
 
+  private void onTrimmedResumeReady() {
+    if (trimmedResumeStartMs == 0) return;
+    long resumeCostMs = SystemClock.elapsedRealtime() - trimmedResumeStartMs;
+    stopTimingTrimmedResume();
+    memoryTrimPolicy.onResumed(resumeCostMs);
+  }
+
+  private void stopTimingTrimmedResume() {
+    trimmedResumeStartMs = 0;
+    if (videoPlayerWithAdPlayback != null) videoPlayerWithAdPlayback.removePlayerListener(trimmedResumeListener);
+  }
+
   @Override
   public void onDestroy() {
     Log.i(CLASSTAG, "onDestroy");
+    Context context = getContext();
+    if (context != null) context.unregisterComponentCallbacks(memoryTrimPolicy);
+    if (customTabsPopup != null) {
+      customTabsPopup.unbind();
+      customTabsPopup = null;
+    }
     if (videoPlayerController != null) {
+      memoryTrimPolicy.removeTrimmable(videoPlayerController);
       videoPlayerController.destroy();
       videoPlayerController = null;
     }
     super.onDestroy();
   }
 
-  private String getRawFileContents(int resourceId) throws IOException {
-    InputStream vastContentStream = getContext().getResources().openRawResource(resourceId);
-
-    StringBuilder stringBuilder = new StringBuilder();
-    BufferedReader reader = null;
-    try {
-      reader = new BufferedReader(new InputStreamReader(vastContentStream));
-
-      String line;
-      while ((line = reader.readLine()) != null) {
-        stringBuilder.append(line);
-      }
-    } finally {
-      if (reader != null) {
-        reader.close();
-      }
+  static String readRawResource(Context context, int resourceId) throws IOException {
+    try (InputStream vastContentStream = context.getResources().openRawResource(resourceId)) {
+      // Raw resource streams know their full length, so read it in one go.
+      byte[] buffer = new byte[vastContentStream.available()];
+      new DataInputStream(vastContentStream).readFully(buffer);
+      return new String(buffer, StandardCharsets.UTF_8);
     }
-
-    return stringBuilder.toString();
   }
 }
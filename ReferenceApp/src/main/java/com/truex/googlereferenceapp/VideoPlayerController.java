@@ -18,24 +18,27 @@ import com.google.ads.interactivemedia.v3.api.AdPodInfo;
 import com.google.ads.interactivemedia.v3.api.AdsLoader;
 import com.google.ads.interactivemedia.v3.api.AdsManager;
 import com.google.ads.interactivemedia.v3.api.AdsManagerLoadedEvent;
-import com.google.ads.interactivemedia.v3.api.AdsRenderingSettings;
 import com.google.ads.interactivemedia.v3.api.AdsRequest;
 import com.google.ads.interactivemedia.v3.api.ImaSdkFactory;
 import com.google.ads.interactivemedia.v3.api.ImaSdkSettings;
 import com.truex.adrenderer.TruexAdEvent;
-import com.truex.adrenderer.TruexAdOptions;
-import com.truex.adrenderer.TruexAdRenderer;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 /** Ads logic for handling the IMA SDK integration code and events. */
-public class VideoPlayerController {
+public class VideoPlayerController implements MemoryTrimPolicy.Trimmable {
   private static final String CLASSTAG = VideoPlayerController.class.getSimpleName();
 
+  // How long after content resumes, or passes a discarded break, the next break is checked, so
+  // that IMA has moved on from the break just finished.
+  private static final long DISCARD_AHEAD_DELAY_MS = 1000;
+
   // The AdsLoader instance exposes the requestAds method.
   private final AdsLoader adsLoader;
 
@@ -57,13 +60,50 @@ public class VideoPlayerController {
   // View that handles taps to toggle ad pause/resume during video playback.
   private final ViewGroup videoContainer;
 
-  private final PopupCallback popupCallback;
-
-  private TruexAdRenderer truexAdRenderer;
-  private Boolean truexCredit;
+  // Runs trueX and IDVx ads for whichever engine is playing.
+  private final InteractiveAdSession interactiveAd;
 
   private List<AdBreak> adBreaks;
 
+  // The break being played, and the one IMA last loaded an ad for, as AdBreak indices.
+  private int currentBreakIndex = -1;
+  private int loadedBreakIndex = -1;
+
+  // Breaks a trueX credit made ad-free, discarded before their ads are loaded.
+  private final CreditLedger creditLedger = new CreditLedger();
+  private final Runnable discardAheadTask = this::discardCoveredBreakAhead;
+
+  // Set when a covered break was discarded as IMA asked content to pause for it. Content kept
+  // playing, so the resume IMA asks for next has nothing to resume.
+  private boolean discardedWithoutPause;
+
+  // Set when the single timeline engine was selected; it then handles playback and ads entirely.
+  private final SingleTimelineEngine singleTimelineEngine;
+  private final PlaybackEngine engine;
+
+  // Set while the hosting fragment is paused, i.e. when the player may be trimmed.
+  private boolean isPaused;
+
+  // Set while another player holds the decoder slot this one gave up while idle.
+  private boolean suspendedForSlot;
+
+  // Set by the session trace replayer: interactive ads are not rendered, and neither the trace nor
+  // the engine benchmark is saved.
+  private boolean replayMode;
+
+  // Steers IMA's media file choice towards what this device can start quickly.
+  private final AdRenderingSettingsProvider adRenderingSettings;
+
+  // Set when each break's pod is fetched just before its cue point instead of all up front.
+  private JustInTimeAds justInTimeAds;
+
+  // Set for live content, whose breaks come from cues found as the stream refreshes.
+  private LiveCueDetector liveCueDetector;
+
+  // Content has played since ads were requested, and is currently paused for a break.
+  private boolean contentStarted;
+  private boolean isInBreak;
+
   // Inner class implementation of AdsLoader.AdsLoaderListener.
   private class AdsLoadedListener implements AdsLoader.AdsLoadedListener {
     /** An event raised when ads are successfully loaded from the ad server via AdsLoader. */
@@ -71,95 +111,156 @@ public class VideoPlayerController {
     public void onAdsManagerLoaded(AdsManagerLoadedEvent adsManagerLoadedEvent) {
       // Ads were successfully loaded, so get the AdsManager instance. AdsManager has
       // events for ad playback and errors.
-      adsManager = adsManagerLoadedEvent.getAdsManager();
+      attachAdsManager(adsManagerLoadedEvent.getAdsManager());
 
-      adBreaks = AdBreak.createAdBreaks(adsManager.getAdCuePoints());
+      // Built for the bandwidth measured now, so each just in time pod gets fresh settings.
+      adsManager.init(adRenderingSettings.create());
+    }
+  }
+
+  /** Takes over a loaded ads manager: sets up the ad markers and listens to its events. */
+  void attachAdsManager(AdsManager manager) {
+    adsManager = manager;
+
+    // A just in time pod holds a single break; the breaks come from the schedule instead.
+    if (justInTimeAds == null) {
+      List<Float> cuePoints = adsManager.getAdCuePoints();
+      recordCuePoints(cuePoints);
+      adBreaks = AdBreak.createAdBreaks(cuePoints);
       videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+    }
 
-      // Attach event and error event listeners.
-      adsManager.addAdErrorListener(
-          new AdErrorEvent.AdErrorListener() {
-            /** An event raised when there is an error loading or playing ads. */
-            @Override
-            public void onAdError(@NonNull AdErrorEvent adErrorEvent) {
-              Log.w(CLASSTAG, "Ad Error: " + adErrorEvent.getError().getMessage());
-              cleanupAds();
-              resumeContent();
-            }
-          });
-      adsManager.addAdEventListener(
-          new AdEvent.AdEventListener() {
-            /** Responds to AdEvents. */
-            @Override
-            public void onAdEvent(@NonNull AdEvent adEvent) {
-              Ad ad = adEvent.getAd();
-              String adId = ad == null ? null : ad.getAdId();
-              if (adEvent.getType() != AdEvent.AdEventType.AD_PROGRESS) {
-                Log.i(CLASSTAG, "Ad Event: " + adId + ": " + adEvent.getType()
-                  + " " + VideoPlayerWithAdPlayback.positionDisplay(videoPlayerWithAdPlayback.getStreamPosition()));
-              }
-
-              // These are the suggested event types to handle. For full list of all ad
-              // event types, see the documentation for AdEvent.AdEventType.
-              switch (adEvent.getType()) {
-                case LOADED:
-                  // AdEventType.LOADED will be fired when ads are ready to be
-                  // played. AdsManager.start() begins ad playback. This method is
-                  // ignored for VMAP or ad rules playlists, as the SDK will
-                  // automatically start executing the playlist.
-                  adsManager.start();
-                  break;
-
-                case STARTED:
-                  // Mark ad breaks starts so we can refresh ad markers later.
-                  AdPodInfo podInfo = ad.getAdPodInfo();
-                  AdBreak adBreak = adBreaks.get(podInfo.getPodIndex());
-                  adBreak.wasStarted = true;
-
-                  if (ad.getAdSystem().contains("trueX") || ad.getAdSystem().contains("IDVx")) {
-                    try {
-                      String params = ad.getTraffickingParameters();
-                      JSONObject json = new JSONObject(params);
-                      AdType adType = ad.getAdSystem().contains("IDVx") ? AdType.IDVX : AdType.TRUEX;
-                      playInteractiveAd(json, adType);
-                    } catch (JSONException e) {
-                      throw new RuntimeException(e);
-                    }
-                  } else {
-                    videoPlayerWithAdPlayback.showPlayer();
-                  }
-                  break;
-
-                case CONTENT_PAUSE_REQUESTED:
-                  // AdEventType.CONTENT_PAUSE_REQUESTED is fired immediately before
-                  // a video ad is played.
-                  pauseContent();
-                  break;
-                case CONTENT_RESUME_REQUESTED:
-                  // AdEventType.CONTENT_RESUME_REQUESTED is fired when the ad is
-                  // completed and you should start playing your content.
-                  resumeContent();
-                  break;
-                case PAUSED:
-                  isAdPlaying = false;
-                  videoPlayerWithAdPlayback.enableControls();
-                  break;
-                case RESUMED:
-                  isAdPlaying = true;
-                  videoPlayerWithAdPlayback.disableControls();
-                  break;
-                case ALL_ADS_COMPLETED:
-                  cleanupAds();
-                  adsLoader.release();
-                  break;
-                default:
-                  break;
-              }
+    // Attach event and error event listeners.
+    adsManager.addAdErrorListener(
+        new AdErrorEvent.AdErrorListener() {
+          /** An event raised when there is an error loading or playing ads. */
+          @Override
+          public void onAdError(@NonNull AdErrorEvent adErrorEvent) {
+            Log.w(CLASSTAG, "Ad Error: " + adErrorEvent.getError().getMessage());
+            if (justInTimeAds != null) {
+              justInTimeAds.onPodFailed();
+              return;
             }
-          });
-      AdsRenderingSettings adsRenderingSettings =
-          ImaSdkFactory.getInstance().createAdsRenderingSettings();
-      adsManager.init(adsRenderingSettings);
+            cleanupAds();
+            resumeContent();
+          }
+        });
+    adsManager.addAdEventListener(this::onAdEvent);
+  }
+
+  // IMA numbers the postroll pod -1; it is the last cue point. A just in time pod is always the
+  // scheduler's active break.
+  private int breakIndexForPod(int podIndex) {
+    if (justInTimeAds != null) return justInTimeAds.getActiveBreakIndex();
+    return podIndex < 0 ? adBreaks.size() - 1 : podIndex;
+  }
+
+  private void recordCuePoints(List<Float> cuePoints) {
+    SessionTrace trace = videoPlayerWithAdPlayback.getSessionTrace();
+    if (!trace.isEnabled()) return;
+    StringBuilder text = new StringBuilder();
+    for (Float cuePoint : cuePoints) {
+      if (text.length() > 0) text.append(',');
+      text.append(cuePoint);
+    }
+    trace.record(SessionTrace.Source.SESSION, "cuePoints", cuePoints.size(), text.toString());
+  }
+
+  /** Responds to AdEvents. */
+  void onAdEvent(@NonNull AdEvent adEvent) {
+    Ad ad = adEvent.getAd();
+    String adId = ad == null ? null : ad.getAdId();
+    AdPodInfo podInfo = ad == null ? null : ad.getAdPodInfo();
+    videoPlayerWithAdPlayback.getSessionTrace().record(SessionTrace.Source.AD_EVENT,
+      adEvent.getType().name(), podInfo == null ? -1 : podInfo.getPodIndex(),
+      ad == null ? null : ad.getAdSystem());
+    if (adEvent.getType() != AdEvent.AdEventType.AD_PROGRESS) {
+      Log.i(CLASSTAG, "Ad Event: " + adId + ": " + adEvent.getType()
+        + " " + VideoPlayerWithAdPlayback.positionDisplay(videoPlayerWithAdPlayback.getStreamPosition()));
+    }
+
+    // These are the suggested event types to handle. For full list of all ad
+    // event types, see the documentation for AdEvent.AdEventType.
+    switch (adEvent.getType()) {
+      case LOADED:
+        // AdEventType.LOADED will be fired when ads are ready to be
+        // played. AdsManager.start() begins ad playback. This method is
+        // ignored for VMAP or ad rules playlists, as the SDK will
+        // automatically start executing the playlist.
+        if (podInfo != null) loadedBreakIndex = breakIndexForPod(podInfo.getPodIndex());
+        if (justInTimeAds != null) {
+          // Started once content reaches the break's cue point.
+          justInTimeAds.onPodLoaded();
+          break;
+        }
+        adsManager.start();
+        break;
+
+      case STARTED:
+        // Mark ad breaks starts so we can refresh ad markers later.
+        currentBreakIndex = breakIndexForPod(podInfo.getPodIndex());
+        AdBreak adBreak = adBreaks.get(currentBreakIndex);
+        adBreak.wasStarted = true;
+        adRenderingSettings.onAdStarted(ad, lastAdStartupMs());
+
+        if (ad.getAdSystem().contains("trueX") || ad.getAdSystem().contains("IDVx")) {
+          try {
+            String params = ad.getTraffickingParameters();
+            JSONObject json = new JSONObject(params);
+            AdType adType = ad.getAdSystem().contains("IDVx") ? AdType.IDVX : AdType.TRUEX;
+            playInteractiveAd(json, adType);
+          } catch (JSONException e) {
+            throw new RuntimeException(e);
+          }
+        } else {
+          videoPlayerWithAdPlayback.showPlayer();
+        }
+        break;
+
+      case CONTENT_PAUSE_REQUESTED:
+        // AdEventType.CONTENT_PAUSE_REQUESTED is fired immediately before
+        // a video ad is played.
+        if (creditLedger.isCovered(loadedBreakIndex)) {
+          // A credited break IMA still went ahead with: drop it without leaving content.
+          discardedWithoutPause = true;
+          discardCoveredBreak(loadedBreakIndex);
+          break;
+        }
+        pauseContent();
+        break;
+      case CONTENT_RESUME_REQUESTED:
+        // AdEventType.CONTENT_RESUME_REQUESTED is fired when the ad is
+        // completed and you should start playing your content.
+        if (discardedWithoutPause) {
+          // Re-preparing would rewind content to the position saved for the previous break.
+          discardedWithoutPause = false;
+          isAdPlaying = false;
+        } else {
+          resumeContent();
+        }
+        // Only once IMA is done with this break, or it would discard this one again.
+        videoPlayerWithAdPlayback.removeCallbacks(discardAheadTask);
+        videoPlayerWithAdPlayback.postDelayed(discardAheadTask, DISCARD_AHEAD_DELAY_MS);
+        break;
+      case PAUSED:
+        isAdPlaying = false;
+        videoPlayerWithAdPlayback.enableControls();
+        break;
+      case RESUMED:
+        isAdPlaying = true;
+        videoPlayerWithAdPlayback.disableControls();
+        break;
+      case ALL_ADS_COMPLETED:
+        cleanupAds();
+        if (justInTimeAds != null) {
+          // The loader stays for the next break's pod.
+          justInTimeAds.onBreakEnded();
+          break;
+        }
+        if (adsLoader != null) adsLoader.release();
+        break;
+      default:
+        break;
     }
   }
 
@@ -169,38 +270,97 @@ public class VideoPlayerController {
       ViewGroup videoContainer,
       String language,
       PopupCallback callback) {
+    this(context, videoPlayerWithAdPlayback, videoContainer, language, callback, PlaybackEngine.MANUAL_IMA);
+  }
+
+  public VideoPlayerController(
+      Context context,
+      VideoPlayerWithAdPlayback videoPlayerWithAdPlayback,
+      ViewGroup videoContainer,
+      String language,
+      PopupCallback callback,
+      PlaybackEngine engine) {
+    this(context, videoPlayerWithAdPlayback, videoContainer, callback, engine, language, null);
+  }
+
+  /**
+   * Runs the manual IMA engine with the given ads loader instead of one created by the IMA SDK, so
+   * that {@link SessionTraceReplayer} can drive the controller without any SDK web view.
+   */
+  VideoPlayerController(
+      Context context,
+      VideoPlayerWithAdPlayback videoPlayerWithAdPlayback,
+      ViewGroup videoContainer,
+      PopupCallback callback,
+      AdsLoader adsLoader) {
+    this(context, videoPlayerWithAdPlayback, videoContainer, callback, PlaybackEngine.MANUAL_IMA, null, adsLoader);
+  }
+
+  private VideoPlayerController(
+      Context context,
+      VideoPlayerWithAdPlayback videoPlayerWithAdPlayback,
+      ViewGroup videoContainer,
+      PopupCallback callback,
+      PlaybackEngine engine,
+      String language,
+      AdsLoader adsLoader) {
     this.videoPlayerWithAdPlayback = videoPlayerWithAdPlayback;
     this.videoContainer = videoContainer;
-    this.popupCallback = callback;
+    this.interactiveAd = new InteractiveAdSession(videoPlayerWithAdPlayback, videoContainer, callback);
+    this.engine = engine;
+    this.adRenderingSettings = new AdRenderingSettingsProvider(context);
     isAdPlaying = false;
+    videoPlayerWithAdPlayback.setSlotListener(slotListener);
 
-    // Create an AdsLoader and optionally set the language.
-    ImaSdkFactory sdkFactory = ImaSdkFactory.getInstance();
-    ImaSdkSettings imaSdkSettings = sdkFactory.createImaSdkSettings();
-    imaSdkSettings.setDebugMode(true);
-    imaSdkSettings.setLanguage(language);
+    // Covered breaks are not worth buffering ahead of time either.
+    videoPlayerWithAdPlayback.setAdPreloadFilter(podIndex -> {
+      if (adBreaks == null || !creditLedger.isCovered(breakIndexForPod(podIndex))) return true;
+      creditLedger.onAdLoadSkipped();
+      return false;
+    });
 
-    // Container with references to video player and ad UI ViewGroup.
-    ViewGroup adUiContainer = videoPlayerWithAdPlayback.getRootView().findViewById(R.id.adUiContainer);
-    AdDisplayContainer adDisplayContainer = ImaSdkFactory.createAdDisplayContainer(
-      adUiContainer, videoPlayerWithAdPlayback.getVideoAdPlayer());
-    adsLoader = sdkFactory.createAdsLoader(context, imaSdkSettings, adDisplayContainer);
+    if (engine == PlaybackEngine.SINGLE_TIMELINE) {
+      singleTimelineEngine = new SingleTimelineEngine(context, videoPlayerWithAdPlayback,
+        PlaybackInfrastructure.get(context).getImaSdkSettings(language), interactiveAd, creditLedger);
+      this.adsLoader = null;
+      return;
+    }
+    singleTimelineEngine = null;
+    this.adsLoader = adsLoader != null ? adsLoader : createAdsLoader(context, videoPlayerWithAdPlayback, language);
 
-    adsLoader.addAdErrorListener(
+    this.adsLoader.addAdErrorListener(
         new AdErrorEvent.AdErrorListener() {
           /** An event raised when there is an error loading or playing ads. */
           @Override
           public void onAdError(@NonNull AdErrorEvent adErrorEvent) {
             Log.w(CLASSTAG, "Ad Error: " + adErrorEvent.getError());
+            if (justInTimeAds != null) {
+              justInTimeAds.onPodFailed();
+              return;
+            }
             resumeContent();
           }
         });
 
-    adsLoader.addAdsLoadedListener(new AdsLoadedListener());
+    this.adsLoader.addAdsLoadedListener(new AdsLoadedListener());
+  }
+
+  // Creates an AdsLoader with the IMA SDK settings shared by all players.
+  private static AdsLoader createAdsLoader(
+      Context context, VideoPlayerWithAdPlayback videoPlayerWithAdPlayback, String language) {
+    ImaSdkSettings imaSdkSettings = PlaybackInfrastructure.get(context).getImaSdkSettings(language);
+
+    // Container with references to video player and ad UI ViewGroup. Each player has its own, so
+    // ad state stays isolated when several players run at once.
+    ViewGroup adUiContainer = videoPlayerWithAdPlayback.findViewById(R.id.adUiContainer);
+    AdDisplayContainer adDisplayContainer = ImaSdkFactory.createAdDisplayContainer(
+      adUiContainer, videoPlayerWithAdPlayback.getVideoAdPlayer());
+    return ImaSdkFactory.getInstance().createAdsLoader(context, imaSdkSettings, adDisplayContainer);
   }
 
   private void pauseContent() {
     videoPlayerWithAdPlayback.pauseContentForAdPlayback();
+    isInBreak = true;
     isAdPlaying = false;
     setPlayPauseOnAdTouch();
   }
@@ -209,21 +369,54 @@ public class VideoPlayerController {
     videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
     videoPlayerWithAdPlayback.resumeContentAfterAdPlayback();
     videoPlayerWithAdPlayback.setVisibility(View.VISIBLE);
+    contentStarted = true;
+    isInBreak = false;
     isAdPlaying = false;
     removePlayPauseOnAdTouch();
   }
 
   /** Set the ad tag URL the player should use to request ads when playing a content video. */
   public void setAdTagUrl(String adTagUrl) {
+    if (singleTimelineEngine != null) singleTimelineEngine.setAdTagUrl(adTagUrl);
     currentAdTagUrl = adTagUrl;
   }
 
   public void setAdTagResponse(String adTagResponse) {
+    if (singleTimelineEngine != null) singleTimelineEngine.setAdTagResponse(adTagResponse);
     currentAdTagResponse = adTagResponse;
   }
 
+  /**
+   * Fetches each break's pod just before its cue point rather than giving IMA the whole ad
+   * response up front; the ad tag url and response are then not used.
+   */
+  public void setJustInTimeAds(JustInTimeAds justInTimeAds) {
+    this.justInTimeAds = justInTimeAds;
+  }
+
+  /**
+   * Plays the content as a live stream whose breaks are found in it as it plays, each break's pod
+   * fetched as soon as its cue is found.
+   */
+  public void setLiveAds(JustInTimeAds liveAds) {
+    setJustInTimeAds(liveAds);
+    videoPlayerWithAdPlayback.setLive(true);
+    liveCueDetector = new LiveCueDetector(videoPlayerWithAdPlayback, liveAds, () -> {
+      if (!isInBreak) videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+    });
+  }
+
   /** Request and subsequently play video ads from the ad server. */
   public void requestAndPlayAds() {
+    if (singleTimelineEngine != null) {
+      singleTimelineEngine.requestAndPlayAds();
+      return;
+    }
+    if (justInTimeAds != null) {
+      startJustInTimeAds();
+      return;
+    }
+
     if ((currentAdTagUrl == null || currentAdTagUrl.isEmpty()) &&
           (currentAdTagResponse) == null || currentAdTagResponse.isEmpty()) {
       Log.w(CLASSTAG, "No VAST ad tag URL specified");
@@ -233,6 +426,7 @@ public class VideoPlayerController {
 
     // Since we're switching to a new video, tell the SDK the previous video is finished.
     cleanupAds();
+    creditLedger.reset();
 
     // Create the ads request.
     AdsRequest request = ImaSdkFactory.getInstance().createAdsRequest();
@@ -249,6 +443,49 @@ public class VideoPlayerController {
     adsLoader.requestAds(request);
   }
 
+  private void startJustInTimeAds() {
+    cleanupAds();
+    creditLedger.reset();
+    contentStarted = false;
+    adBreaks = justInTimeAds.start(videoPlayerWithAdPlayback, creditLedger, new JustInTimeListener());
+    videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+    if (liveCueDetector != null) liveCueDetector.start();
+    // Without a preroll there is nothing to wait for.
+    if (!justInTimeAds.hasPreroll()) resumeContent();
+  }
+
+  private class JustInTimeListener implements JustInTimeAds.Listener {
+    @Override
+    public void onPodFetched(int breakIndex, String vast) {
+      AdsRequest request = ImaSdkFactory.getInstance().createAdsRequest();
+      request.setAdsResponse(vast);
+      request.setContentProgressProvider(videoPlayerWithAdPlayback.getContentProgressProvider());
+      adsLoader.requestAds(request);
+    }
+
+    @Override
+    public void onBreakDue(int breakIndex) {
+      if (adsManager != null) adsManager.start();
+    }
+
+    @Override
+    public void onBreakMissed(int breakIndex) {
+      // Content only needs restarting if it never started or was paused for this break.
+      boolean resume = !contentStarted || isInBreak;
+      cleanupAds();
+      if (resume) {
+        resumeContent();
+      } else {
+        videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+      }
+    }
+
+    @Override
+    public void onBreakSkipped(int breakIndex) {
+      videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+    }
+  }
+
   /** Touch to toggle play/pause during ad play instead of seeking. */
   private void setPlayPauseOnAdTouch() {
     // Use AdsManager pause/resume methods instead of the video player pause/resume methods
@@ -278,6 +515,8 @@ public class VideoPlayerController {
    * just a URL and could trigger additional decisions regarding ad tag selection.
    */
   public void setContentVideo(String videoPath) {
+    videoPlayerWithAdPlayback.getSessionTrace().record(SessionTrace.Source.SESSION, "contentUrl", 0, videoPath);
+    if (singleTimelineEngine != null) singleTimelineEngine.setContentVideo(videoPath);
     videoPlayerWithAdPlayback.setContentVideoUrl(videoPath);
   }
 
@@ -287,85 +526,103 @@ public class VideoPlayerController {
     // pre seek to the end in case we want to play the fallback ads.
     videoPlayerWithAdPlayback.seekToEnd();
 
-    videoPlayerWithAdPlayback.disableControls();
-
-    // On some older 4K devices we need to actually hide the actual playback view so that truex videos can show.
-    videoPlayerWithAdPlayback.hidePlayer();
-
-    truexCredit = false;
-    truexAdRenderer = new TruexAdRenderer(videoPlayerWithAdPlayback.getContext());
-
-    truexAdRenderer.addEventListener(null, this::onTruexAdEvent); // listen to all events.
-
-    TruexAdOptions options = new TruexAdOptions();
-    // IDVx ads don't support user cancel stream
-    options.supportsUserCancelStream = (adType == AdType.TRUEX);
+    interactiveAd.start(params, adType, interactiveAdListener);
+  }
 
-    String vastUrl = params.optString("vast_config_url");
-    if (vastUrl.isEmpty()) {
-      truexAdRenderer.init(params, options);
+  private final InteractiveAdSession.Listener interactiveAdListener = new InteractiveAdSession.Listener() {
+    @Override
+    public void onCredit() {
+      creditLedger.credit(adBreaks, currentBreakIndex);
     }
-    else {
-      truexAdRenderer.init(vastUrl, options);
+
+    @Override
+    public void onEnded(boolean credit) {
+      if (credit) {
+        // The user received true[ATTENTION] credit
+        // Resume the content stream (and skip any linear ads)
+        resumeContentStream();
+      } else {
+        // The user did not receive credit
+        // Continue the content stream and display linear ads
+        playFallbackAds();
+      }
     }
+  };
 
-    truexAdRenderer.start(videoContainer);
+  public void setInteractiveAdDeadline(InteractiveAdDeadline deadline) {
+    interactiveAd.setDeadline(deadline);
   }
 
-  private void onTruexAdEvent(TruexAdEvent event, Map<String, ?> data) {
-    Log.i(CLASSTAG, "onTruexAdEvent: " + event);
-    switch (event) {
-      case AD_COMPLETED:
-      case AD_ERROR:
-      case NO_ADS_AVAILABLE:
-        onTruexAdCompleted();
-        break;
-      case AD_FREE_POD:
-        truexCredit = true;
-        break;
-      case POPUP_WEBSITE:
-        String url = (String)data.get("url");
-        popupCallback.onPopup(url);
-        break;
-      case AD_STARTED:
-        videoPlayerWithAdPlayback.disableControls();
-        break;
+  public InteractiveAdDeadline getInteractiveAdDeadline() {
+    return interactiveAd.getDeadline();
+  }
 
-      case AD_FETCH_COMPLETED:
-      case USER_CANCEL:
-      case OPT_IN:
-      case OPT_OUT:
-      case SKIP_CARD_SHOWN:
-      default:
-        break;
-    }
+  void setReplayMode(boolean replayMode) {
+    this.replayMode = replayMode;
+    interactiveAd.setReplayMode(replayMode);
   }
 
-  private void onTruexAdCompleted(){
-    videoPlayerWithAdPlayback.showPlayer();
-    if (truexAdRenderer != null) {
-      truexAdRenderer.stop();
-      truexAdRenderer = null;
-    }
-    if (truexCredit) {
-      // The user received true[ATTENTION] credit
-      // Resume the content stream (and skip any linear ads)
-      resumeContentStream();
-    } else {
-      // The user did not receive credit
-      // Continue the content stream and display linear ads
-      playFallbackAds();
-    }
+  void onTruexAdEvent(TruexAdEvent event, Map<String, ?> data) {
+    interactiveAd.onTruexAdEvent(event, data);
   }
 
   public void resumeContentStream() {
     if (adsManager != null) {
       videoPlayerWithAdPlayback.logPosition("resumeContentStream");
+      if (adBreaks != null && currentBreakIndex >= 0) {
+        creditLedger.onBreakSkipped(adBreaks.get(currentBreakIndex));
+      }
+      if (justInTimeAds != null) {
+        // The pod's ads manager holds only this break, so it is simply dropped.
+        cleanupAds();
+        resumeContent();
+        justInTimeAds.onBreakEnded();
+        return;
+      }
       adsManager.discardAdBreak();
       adsManager.resume();
     }
   }
 
+  /**
+   * Discards the upcoming break while content is still playing if a credit already covers it, so
+   * IMA never loads its ads. The break after it is checked once content has passed this one.
+   */
+  private void discardCoveredBreakAhead() {
+    videoPlayerWithAdPlayback.removeCallbacks(discardAheadTask);
+    // The just in time scheduler skips covered breaks itself.
+    if (adsManager == null || adBreaks == null || justInTimeAds != null) return;
+    long contentPosition = videoPlayerWithAdPlayback.getContentPosition();
+    int next = -1;
+    for (int i = 0; i < adBreaks.size(); i++) {
+      AdBreak adBreak = adBreaks.get(i);
+      if (!adBreak.wasStarted && (adBreak.contentPosition > contentPosition || adBreak.contentPosition < 0)) {
+        next = i;
+        break;
+      }
+    }
+    if (next < 0 || !creditLedger.isCovered(next)) return;
+
+    discardCoveredBreak(next);
+    long untilPassed = adBreaks.get(next).contentPosition - contentPosition;
+    if (untilPassed >= 0) videoPlayerWithAdPlayback.postDelayed(discardAheadTask, untilPassed + DISCARD_AHEAD_DELAY_MS);
+  }
+
+  private void discardCoveredBreak(int breakIndex) {
+    AdBreak adBreak = adBreaks.get(breakIndex);
+    Log.i(CLASSTAG, "discarding credited break " + breakIndex);
+    adsManager.discardAdBreak();
+    if (!adBreak.wasStarted) {
+      adBreak.wasStarted = true;
+      creditLedger.onBreakSkipped(adBreak);
+      videoPlayerWithAdPlayback.setAdMarkers(adBreaks);
+    }
+  }
+
+  public CreditLedger getCreditLedger() {
+    return creditLedger;
+  }
+
   public void playFallbackAds() {
     if (adsManager != null) {
       videoPlayerWithAdPlayback.logPosition("playFallbackAds");
@@ -380,9 +637,15 @@ public class VideoPlayerController {
    * example.
    */
   public void pause() {
+    isPaused = true;
+    interactiveAd.pause();
+    if (singleTimelineEngine != null) {
+      singleTimelineEngine.pause();
+      return;
+    }
     videoPlayerWithAdPlayback.savePosition();
+    if (justInTimeAds != null) justInTimeAds.pause();
     if (adsManager != null && videoPlayerWithAdPlayback.isPlayingAd()) {
-      if (truexAdRenderer != null) truexAdRenderer.pause();
       adsManager.pause();
     } else {
       videoPlayerWithAdPlayback.pause();
@@ -394,16 +657,87 @@ public class VideoPlayerController {
    * resumed.
    */
   public void resume() {
-    videoPlayerWithAdPlayback.restorePosition();
+    isPaused = false;
+    suspendedForSlot = false;
+    interactiveAd.resume();
+    if (singleTimelineEngine != null) {
+      singleTimelineEngine.resume();
+      return;
+    }
+    if (videoPlayerWithAdPlayback.isPlayerReleased()) {
+      videoPlayerWithAdPlayback.restorePlayer();
+    } else {
+      videoPlayerWithAdPlayback.restorePosition();
+    }
     if (adsManager != null && videoPlayerWithAdPlayback.isPlayingAd()) {
       adsManager.resume();
-      if (truexAdRenderer != null) truexAdRenderer.resume();
     } else {
       videoPlayerWithAdPlayback.play();
     }
+    if (justInTimeAds != null) justInTimeAds.resume();
+  }
+
+  // Only an idle player loses its decoder slot, so nothing is paused here; the schedule is held
+  // while the player is released and picks up again when the slot comes back.
+  private final VideoPlayerWithAdPlayback.SlotListener slotListener = new VideoPlayerWithAdPlayback.SlotListener() {
+    @Override
+    public void onSlotRevoked() {
+      suspendedForSlot = true;
+      if (justInTimeAds != null) justInTimeAds.pause();
+      videoPlayerWithAdPlayback.releasePlayer();
+    }
+
+    @Override
+    public boolean onSlotGranted() {
+      // In the background the slot is left to others; resume() claims one again.
+      if (isPaused) return false;
+      if (suspendedForSlot) {
+        suspendedForSlot = false;
+        if (justInTimeAds != null) justInTimeAds.resume();
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isBusy() {
+      return interactiveAd.isActive();
+    }
+  };
+
+  @Override
+  public boolean onTrim(@NonNull MemoryTrimPolicy.Tier tier) {
+    // Only a paused session gives up its player resources; a visible one keeps playing as is, and
+    // is asked again on the next trim.
+    if (!isPaused) return false;
+    // Keep the paused ad ready to continue instantly when returning from a popup, unless the
+    // system is about to reclaim the whole process.
+    if (interactiveAd.isPopupOpen() && tier != MemoryTrimPolicy.Tier.PLAYER) return false;
+    switch (tier) {
+      case CACHES:
+        return videoPlayerWithAdPlayback.dropBuffers();
+      case PLAYER:
+        videoPlayerWithAdPlayback.releasePlayer();
+        return true;
+      default:
+        return false;
+    }
   }
 
   public void destroy() {
+    videoPlayerWithAdPlayback.getQoeCollector().export();
+    saveEngineBenchmark();
+    Log.i(CLASSTAG, "credit ledger: " + creditLedger.report(meanAdBitrate()));
+    Log.i(CLASSTAG, "ad bitrate vs start: " + adRenderingSettings.report());
+    if (liveCueDetector != null) liveCueDetector.stop();
+    if (justInTimeAds != null) {
+      justInTimeAds.stop();
+      Log.i(CLASSTAG, "just in time ads: " + justInTimeAds.report());
+    }
+    saveSessionTrace();
+    if (singleTimelineEngine != null) {
+      singleTimelineEngine.destroy();
+      return;
+    }
     videoPlayerWithAdPlayback.release();
     cleanupAds();
     if (adsLoader != null) {
@@ -411,11 +745,60 @@ public class VideoPlayerController {
     }
   }
 
-  private void cleanupAds() {
-    if (truexAdRenderer != null) {
-      truexAdRenderer.stop();
-      truexAdRenderer = null;
+  // Adds this session to its engine's totals, so runs with either engine add up to a comparison.
+  private void saveEngineBenchmark() {
+    EngineBenchmark benchmark = videoPlayerWithAdPlayback.getEngineBenchmark();
+    Log.i(CLASSTAG, engine + " engine: " + benchmark.report());
+    if (replayMode) return;
+    Context context = videoPlayerWithAdPlayback.getContext().getApplicationContext();
+    PlaybackInfrastructure.get(context).getWorkerExecutor().execute(() ->
+      Log.i(CLASSTAG, "engines compared: " + benchmark.saveAndCompare(context, engine)));
+  }
+
+  // Debug builds keep each session's trace so that slow breaks can be pulled off the device.
+  private void saveSessionTrace() {
+    SessionTrace trace = videoPlayerWithAdPlayback.getSessionTrace();
+    if (!trace.isEnabled() || replayMode) return;
+    Context context = videoPlayerWithAdPlayback.getContext();
+    File file = new File(new File(context.getFilesDir(), "traces"),
+      "session-" + System.currentTimeMillis() + ".trace");
+    PlaybackInfrastructure.get(context).getWorkerExecutor().execute(() -> {
+      try {
+        trace.save(file);
+      } catch (IOException e) {
+        Log.w(CLASSTAG, "saving session trace failed: " + e);
+      }
+    });
+  }
+
+  // The startup time of the ad the player started last, or -1 before its first frame.
+  private long lastAdStartupMs() {
+    QoeCollector qoeCollector = videoPlayerWithAdPlayback.getQoeCollector();
+    int count = qoeCollector.getAdSegmentCount();
+    return count == 0 ? -1 : qoeCollector.getAdSegment(count - 1).getStartupMs();
+  }
+
+  // Over the recent ads the collector keeps, which is every ad of a VOD session.
+  private long meanAdBitrate() {
+    long sum = 0;
+    int count = 0;
+    QoeCollector qoeCollector = videoPlayerWithAdPlayback.getQoeCollector();
+    for (int i = 0; i < qoeCollector.getAdSegmentCount(); i++) {
+      QoeCollector.Aggregate segment = qoeCollector.getAdSegment(i);
+      if (segment.getVideoBitrate() > 0) {
+        sum += segment.getVideoBitrate();
+        count++;
+      }
     }
+    return count == 0 ? 0 : sum / count;
+  }
+
+  private void cleanupAds() {
+    interactiveAd.stop();
+    videoPlayerWithAdPlayback.removeCallbacks(discardAheadTask);
+    discardedWithoutPause = false;
+    currentBreakIndex = -1;
+    loadedBreakIndex = -1;
     if (adsManager != null) {
       adsManager.destroy();
       adsManager = null;
@@ -3,8 +3,10 @@ package com.truex.googlereferenceapp;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.View;
 import android.widget.RelativeLayout;
 
@@ -12,18 +14,21 @@ import androidx.annotation.NonNull;
 import androidx.annotation.OptIn;
 import androidx.media3.common.C;
 import androidx.media3.common.MediaItem;
+import androidx.media3.common.MimeTypes;
 import androidx.media3.common.PlaybackException;
 import androidx.media3.common.Player;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.common.util.Util;
 import androidx.media3.datasource.DataSource;
-import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.exoplayer.DefaultLoadControl;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
 import androidx.media3.exoplayer.dash.DashMediaSource;
 import androidx.media3.exoplayer.dash.DefaultDashChunkSource;
 import androidx.media3.exoplayer.hls.HlsMediaSource;
 import androidx.media3.exoplayer.source.MediaSource;
 import androidx.media3.exoplayer.source.ProgressiveMediaSource;
+import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
 import androidx.media3.ui.PlayerView;
 
 import com.google.ads.interactivemedia.v3.api.AdPodInfo;
@@ -54,11 +59,73 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
 
   private String currentStreamUrl;
 
+  // Ads of the current pod in player playlist order. IMA preloads the next ad while the current
+  // one plays, so it can be queued behind it for a gapless transition.
+  private final List<AdMediaInfo> adPlaylist = new ArrayList<>();
+
+  // An ad IMA preloaded while content was still playing, started once content pauses for it.
+  // The content is still the player's only item, so the start of the ad is fetched into the media
+  // cache instead of being buffered by the player.
+  private AdMediaInfo pendingAd;
+  private PlaybackInfrastructure.Prefetch pendingAdPrefetch;
+  private static final long PENDING_AD_PREFETCH_BYTES = 1024 * 1024;
+
+  private boolean isInAdBreak;
+
+  // Set when the player moved onto a queued ad by itself, before IMA asked for it to be played.
+  private boolean queuedAdAwaitingPlay;
+
+  /** Decides whether an ad IMA loads ahead of its break is worth buffering before the break. */
+  public interface AdPreloadFilter {
+    boolean shouldPreload(int podIndex);
+  }
+
+  private AdPreloadFilter adPreloadFilter;
+
   private long savedAdPosition;
   private long savedContentPosition;
 
   private boolean contentHasCompleted;
 
+  // Live content is rejoined at the live edge rather than at a saved position, and its
+  // playlists are never served from the media cache.
+  private boolean isLive;
+
+  // Listeners that carry over to the player rebuilt by restorePlayer().
+  private final List<Player.Listener> extraPlayerListeners = new ArrayList<>();
+  private final List<AnalyticsListener> extraAnalyticsListeners = new ArrayList<>();
+  private final List<PlayerBinding> playerBindings = new ArrayList<>();
+
+  // The pod of the ad IMA loaded last.
+  private int adPodIndex = -1;
+
+  // Previews for scrubbing the content, if it has a thumbnail index.
+  private SeekThumbnails seekThumbnails;
+
+  // Shown by BuildConfig.PERFORMANCE_HUD or by entering HUD_KEYS on the remote.
+  private PerformanceHud performanceHud;
+  private static final int[] HUD_KEYS = {
+    KeyEvent.KEYCODE_DPAD_UP, KeyEvent.KEYCODE_DPAD_UP, KeyEvent.KEYCODE_DPAD_DOWN,
+    KeyEvent.KEYCODE_DPAD_DOWN, KeyEvent.KEYCODE_DPAD_LEFT, KeyEvent.KEYCODE_DPAD_RIGHT,
+    KeyEvent.KEYCODE_DPAD_LEFT, KeyEvent.KEYCODE_DPAD_RIGHT };
+  // For each prefix of HUD_KEYS, the length of its longest proper prefix that is also its suffix,
+  // so a wrong key falls back to the longest part of the sequence still entered, as in KMP.
+  private static final int[] HUD_KEYS_FALLBACK = prefixFallbacks(HUD_KEYS);
+  private int hudKeysMatched;
+
+  // Suspends and restores the owner's playback state around the decoder slot, if set.
+  private SlotListener slotListener;
+
+  // Set when playback was asked for while every decoder slot was playing elsewhere.
+  private boolean playWhenSlotGranted;
+
+  // Built during cold start so that the first player view does not build one while inflating.
+  private static ExoPlayer prebuiltPlayer;
+
+  private final QoeCollector qoeCollector = new QoeCollector();
+  private final EngineBenchmark engineBenchmark = new EngineBenchmark();
+  private SessionTrace sessionTrace = BuildConfig.DEBUG ? new SessionTrace() : SessionTrace.DISABLED;
+
   // ContentProgressProvider interface implementation for the SDK to check content progress.
   private ContentProgressProvider contentProgressProvider;
 
@@ -86,68 +153,236 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
     contentHasCompleted = false;
     savedAdPosition = 0;
     savedContentPosition = 0;
-    videoPlayer = new ExoPlayer.Builder(this.getContext()).build();
 
-    playerView = this.getRootView().findViewById(R.id.player_view);
-    playerView.setPlayer(videoPlayer);
+    playerView = findViewById(R.id.player_view);
+    buildPlayer();
+    initProgressProvider();
+    if (BuildConfig.PERFORMANCE_HUD) togglePerformanceHud();
+  }
+
+  /**
+   * Sets up a player view built in code around the given player, for {@link SessionTraceReplayer}.
+   * Nothing is recorded, so the replay costs what a release build's session does.
+   */
+  void initForReplay(ExoPlayer player) {
+    sessionTrace = SessionTrace.DISABLED;
+    playerView = findViewById(R.id.player_view);
+    videoPlayer = player;
+    initProgressProvider();
+  }
 
+  private void initProgressProvider() {
     contentProgressProvider = () -> {
-      if (currentAd != null || videoPlayer.getDuration() <= 0) {
+      if (currentAd != null || videoPlayer == null || videoPlayer.getDuration() <= 0) {
         return VideoProgressUpdate.VIDEO_TIME_NOT_READY;
       }
       return new VideoProgressUpdate(
         videoPlayer.getCurrentPosition(), videoPlayer.getDuration());
     };
+  }
+
+  private void buildPlayer() {
+    // Hold one of the process-wide decoder slots, buffering within this player's memory share.
+    // Without one the player stays unbuilt until a slot is granted.
+    if (!PlaybackInfrastructure.get(getContext()).acquireSlot(slotHolder)) return;
+    ExoPlayer prebuilt = takePrebuiltPlayer();
+    videoPlayer = prebuilt != null ? prebuilt : createPlayer(getContext());
+    playerView.setPlayer(videoPlayer);
 
     // Set player callbacks for delegating major video events.
-    videoPlayer.addListener(
-      new Player.Listener() {
-        public void onIsPlayingChanged(boolean isPlaying) {
-          if (currentAd != null) {
-            if (isPlaying) {
-              boolean hasStarted = videoPlayer.getCurrentPosition() > 0;
-              for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-                if (hasStarted) {
-                  callback.onResume(currentAd);
-                } else {
-                  callback.onPlay(currentAd);
-                }
-              }
-
-              // Ensure we are polling the ad progress.
-              updateAdProgress();
-
-            } else {
-              for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-                callback.onPause(currentAd);
-              }
+    videoPlayer.addListener(playerListener);
+    for (Player.Listener listener : extraPlayerListeners) videoPlayer.addListener(listener);
+    for (AnalyticsListener listener : extraAnalyticsListeners) videoPlayer.addAnalyticsListener(listener);
+    videoPlayer.addAnalyticsListener(qoeCollector);
+    videoPlayer.addAnalyticsListener(engineBenchmark);
+    for (PlayerBinding binding : playerBindings) binding.onPlayerBuilt(videoPlayer);
+  }
+
+  /**
+   * Builds a player configured like every instance's. May be called on any thread; the player
+   * itself is used on the main thread.
+   */
+  static ExoPlayer createPlayer(Context context) {
+    PlaybackInfrastructure infrastructure = PlaybackInfrastructure.get(context);
+    DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
+      .setTargetBufferBytes((int) infrastructure.getBufferBytesPerPlayer())
+      .setPrioritizeTimeOverSizeThresholds(false)
+      .build();
+
+    // Renditions are capped to what the display and the decoders can show, as probed once per build.
+    DeviceCapabilities capabilities = DeviceCapabilities.get(context);
+    DefaultTrackSelector trackSelector = new DefaultTrackSelector(context);
+    trackSelector.setParameters(trackSelector.buildUponParameters()
+      .setMaxVideoSize(
+        Math.min(capabilities.getDisplayWidth(), maxDecodableWidth(capabilities)),
+        Math.min(capabilities.getDisplayHeight(), maxDecodableHeight(capabilities))));
+
+    ExoPlayer.Builder builder = new ExoPlayer.Builder(context)
+      .setTrackSelector(trackSelector)
+      .setLoadControl(loadControl)
+      .setLooper(Looper.getMainLooper());
+    return builder.build();
+  }
+
+  // The largest video any probed decoder handles; no cap if none was found, e.g. on an emulator.
+  private static int maxDecodableWidth(DeviceCapabilities capabilities) {
+    int width = Math.max(capabilities.getMaxWidth(MimeTypes.VIDEO_H264), capabilities.getMaxWidth(MimeTypes.VIDEO_H265));
+    return width > 0 ? width : Integer.MAX_VALUE;
+  }
+
+  private static int maxDecodableHeight(DeviceCapabilities capabilities) {
+    int height = Math.max(capabilities.getMaxHeight(MimeTypes.VIDEO_H264), capabilities.getMaxHeight(MimeTypes.VIDEO_H265));
+    return height > 0 ? height : Integer.MAX_VALUE;
+  }
+
+  /** Builds a player ahead of time, off the main thread, for the first instance to take. */
+  static synchronized void prebuildPlayer(Context context) {
+    if (prebuiltPlayer == null) prebuiltPlayer = createPlayer(context.getApplicationContext());
+  }
+
+  private static synchronized ExoPlayer takePrebuiltPlayer() {
+    ExoPlayer player = prebuiltPlayer;
+    prebuiltPlayer = null;
+    return player;
+  }
+
+  /** Something bound to the player itself, e.g. an ads loader, kept bound across a rebuild. */
+  public interface PlayerBinding {
+    void onPlayerBuilt(@NonNull ExoPlayer player);
+
+    /** Called before the player is released. */
+    void onPlayerReleasing(@NonNull ExoPlayer player);
+  }
+
+  /** Adds the binding, binding it right away if there is a player. */
+  public void addPlayerBinding(PlayerBinding binding) {
+    playerBindings.add(binding);
+    if (videoPlayer != null) binding.onPlayerBuilt(videoPlayer);
+  }
+
+  public void removePlayerBinding(PlayerBinding binding) {
+    playerBindings.remove(binding);
+  }
+
+  /** Lets the owner suspend and restore what drives this player around its decoder slot. */
+  public interface SlotListener {
+    /** Another player needs the slot: suspend the playback state, then {@link #releasePlayer()}. */
+    void onSlotRevoked();
+
+    /** A slot is free again and the player is about to be restored; false leaves it to others. */
+    boolean onSlotGranted();
+
+    /** Whether the owner uses the player beyond its playback, e.g. for an interactive ad. */
+    boolean isBusy();
+  }
+
+  public void setSlotListener(SlotListener slotListener) {
+    this.slotListener = slotListener;
+  }
+
+  private final PlaybackInfrastructure.SlotHolder slotHolder = new PlaybackInfrastructure.SlotHolder() {
+    @Override
+    public void onSlotRevoked() {
+      if (slotListener != null) {
+        slotListener.onSlotRevoked();
+      } else {
+        releasePlayer();
+      }
+    }
+
+    @Override
+    public boolean onSlotGranted() {
+      if (slotListener != null && !slotListener.onSlotGranted()) return false;
+      restorePlayer();
+      return true;
+    }
+
+    @Override
+    public boolean isPlaying() {
+      // A buffering player is about to play, so it counts as playing too.
+      return (videoPlayer != null && videoPlayer.getPlayWhenReady())
+        || (slotListener != null && slotListener.isBusy());
+    }
+  };
+
+  private final Player.Listener playerListener = new Player.Listener() {
+    public void onIsPlayingChanged(boolean isPlaying) {
+      sessionTrace.record(SessionTrace.Source.PLAYER, "isPlaying", isPlaying ? 1 : 0);
+      AdMediaInfo ad = currentAd;
+      if (ad != null) {
+        if (isPlaying) {
+          boolean hasStarted = videoPlayer.getCurrentPosition() > 0;
+          if (hasStarted) {
+            for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+              callback.onResume(ad);
+            }
+          } else {
+            for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+              callback.onPlay(ad);
             }
           }
-        }
 
-        public void onPlayerError(@NonNull PlaybackException error) {
-          if (currentAd == null) return;
+          // Ensure we are polling the ad progress.
+          updateAdProgress();
+
+        } else {
           for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-            callback.onError(currentAd);
+            callback.onPause(ad);
           }
         }
+      }
+    }
 
-        public void onPlaybackStateChanged(@Player.State int playbackState) {
-          if (playbackState == Player.STATE_ENDED) {
-            if (currentAd != null) {
-              for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-                callback.onEnded(currentAd);
-              }
-            } else {
-              contentHasCompleted = true;
-              for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-                callback.onContentComplete();
-              }
-            }
+    public void onPlayerError(@NonNull PlaybackException error) {
+      sessionTrace.record(SessionTrace.Source.PLAYER, "error", error.errorCode);
+      AdMediaInfo ad = currentAd;
+      if (ad == null) return;
+      for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+        callback.onError(ad);
+      }
+    }
+
+    public void onMediaItemTransition(MediaItem mediaItem, @Player.MediaItemTransitionReason int reason) {
+      sessionTrace.record(SessionTrace.Source.PLAYER, "transition", reason);
+      if (!isInAdBreak || (reason != Player.MEDIA_ITEM_TRANSITION_REASON_AUTO
+        && reason != Player.MEDIA_ITEM_TRANSITION_REASON_SEEK)) {
+        return;
+      }
+      int index = videoPlayer.getCurrentMediaItemIndex();
+      if (index >= adPlaylist.size()) return;
+
+      // Moved onto a preloaded ad: the previous one has ended and the next is already playing.
+      AdMediaInfo previousAd = currentAd;
+      AdMediaInfo nextAd = adPlaylist.get(index);
+      currentAd = nextAd;
+      currentStreamUrl = nextAd.getUrl();
+      queuedAdAwaitingPlay = true;
+      qoeCollector.beginQueuedAd(nextAd.getUrl());
+      logPosition("queued ad transition");
+      if (previousAd != null) {
+        for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+          callback.onEnded(previousAd);
+        }
+      }
+    }
+
+    public void onPlaybackStateChanged(@Player.State int playbackState) {
+      sessionTrace.record(SessionTrace.Source.PLAYER, "state", playbackState);
+      if (playbackState == Player.STATE_ENDED) {
+        AdMediaInfo ad = currentAd;
+        if (ad != null) {
+          for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+            callback.onEnded(ad);
+          }
+        } else {
+          contentHasCompleted = true;
+          for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+            callback.onContentComplete();
           }
         }
-      });
-  }
+      }
+    }
+  };
 
   static public String positionDisplay(long position) {
     StringBuilder formatBuilder = new StringBuilder();
@@ -157,6 +392,10 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
   }
 
   public void logPosition(String context) {
+    if (videoPlayer == null) {
+      logPosition(context + " (released)", getStreamPosition());
+      return;
+    }
     long streamPos = videoPlayer.getCurrentPosition();
     int state = videoPlayer.getPlaybackState();
     String stateLabel = switch (state) {
@@ -183,7 +422,8 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
   }
 
   private void updateAdProgress() {
-    if (currentAd == null) return;
+    AdMediaInfo ad = currentAd;
+    if (ad == null || videoPlayer == null) return;
 
     long position = videoPlayer.getCurrentPosition();
     long duration = videoPlayer.getDuration();
@@ -192,7 +432,7 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
       : new VideoProgressUpdate(position, duration);
 
     for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
-      callback.onAdProgress(currentAd, progress);
+      callback.onAdProgress(ad, progress);
     }
 
     if (videoPlayer.isPlaying()) {
@@ -208,17 +448,34 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
     contentHasCompleted = false;
   }
 
+  public void setLive(boolean isLive) {
+    this.isLive = isLive;
+  }
+
+  public boolean isLive() {
+    return isLive;
+  }
+
   public void setStreamUrl(String streamUrl) {
     Log.i(CLASSTAG, "*** setStreamUrl: " + streamUrl);
 
     if (streamUrl == null || streamUrl.isEmpty()) {
-      videoPlayer.stop();
+      if (videoPlayer != null) videoPlayer.stop();
       return;
     }
 
     currentStreamUrl = streamUrl;
+    // Released under memory pressure: restorePlayer() prepares the stream when it rebuilds.
+    if (videoPlayer == null) return;
+
+    videoPlayer.setMediaSource(buildMediaSource(streamUrl));
+    videoPlayer.prepare();
+  }
 
-    DataSource.Factory dataSourceFactory = new DefaultDataSource.Factory(getContext());
+  private MediaSource buildMediaSource(String streamUrl) {
+    DataSource.Factory dataSourceFactory = isLive && streamUrl.equals(contentVideoUrl)
+      ? HttpStack.get().createDataSourceFactory(getContext())
+      : PlaybackInfrastructure.get(getContext()).createDataSourceFactory();
     int type = Util.inferContentType(Uri.parse(streamUrl));
     MediaItem mediaItem = MediaItem.fromUri(Uri.parse(streamUrl));
 
@@ -234,19 +491,72 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
       default -> throw new UnsupportedOperationException("Unknown stream type: " + type);
     };
 
+    return mediaSource;
+  }
+
+  /**
+   * Plays a media source that carries its own ads, i.e. for the single timeline engine.
+   */
+  public void playMediaSource(MediaSource mediaSource) {
+    currentStreamUrl = null;
+    qoeCollector.beginContent();
+    if (videoPlayer == null) return;
+    videoPlayer.setMediaSource(mediaSource);
+    videoPlayer.prepare();
+    videoPlayer.play();
+  }
+
+  /** Prepares a media source on a rebuilt player without playing it, for {@link PlayerBinding}s. */
+  public void prepareMediaSource(MediaSource mediaSource) {
+    if (videoPlayer == null) return;
     videoPlayer.setMediaSource(mediaSource);
     videoPlayer.prepare();
   }
 
+  /**
+   * Queues an ad behind the one currently playing so the player buffers it ahead of time.
+   */
+  private void queueAd(AdMediaInfo adMediaInfo) {
+    logPosition("queueAd");
+    if (videoPlayer == null) return;
+    adPlaylist.add(adMediaInfo);
+    videoPlayer.addMediaSource(buildMediaSource(adMediaInfo.getUrl()));
+  }
+
+  // Only progressive ads can be fetched by byte range; stream ads are left to the player.
+  private void setPendingAd(AdMediaInfo ad) {
+    if (pendingAdPrefetch != null) pendingAdPrefetch.cancel();
+    pendingAdPrefetch = null;
+    pendingAd = ad;
+    if (ad != null && Util.inferContentType(Uri.parse(ad.getUrl())) == C.CONTENT_TYPE_OTHER) {
+      pendingAdPrefetch = PlaybackInfrastructure.get(getContext()).prefetch(ad.getUrl(), PENDING_AD_PREFETCH_BYTES);
+    }
+  }
+
+  /**
+   * Replaces whatever the player holds with the given ad as the start of a new pod playlist.
+   */
+  private void startAdPlaylist(AdMediaInfo adMediaInfo) {
+    adPlaylist.clear();
+    adPlaylist.add(adMediaInfo);
+    currentAd = adMediaInfo;
+    queuedAdAwaitingPlay = false;
+    qoeCollector.beginAd(adMediaInfo.getUrl());
+    setStreamUrl(adMediaInfo.getUrl());
+  }
+
   /**
    * Save the playback progress state of the currently playing video. This is called when content is
    * paused to prepare for ad playback or when app is backgrounded.
    */
   public void savePosition() {
+    // A released player saved its positions as it was released.
+    if (videoPlayer == null) return;
     if (currentAd != null) {
       savedAdPosition = videoPlayer.getCurrentPosition();
     } else {
-      savedContentPosition = videoPlayer.getCurrentPosition();
+      // The content position, also while the single timeline engine plays an ad group.
+      savedContentPosition = videoPlayer.getContentPosition();
     }
   }
 
@@ -255,9 +565,10 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
    * called when content is resumed after ad playback or when focus has returned to the app.
    */
   public void restorePosition() {
+    if (videoPlayer == null) return;
     if (currentAd != null) {
       videoPlayer.seekTo(savedAdPosition);
-    } else {
+    } else if (!isLive) {
       videoPlayer.seekTo(savedContentPosition);
     }
   }
@@ -266,23 +577,95 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
    * Pauses the content video.
    */
   public void pause() {
-    videoPlayer.pause();
+    playWhenSlotGranted = false;
+    if (videoPlayer != null) videoPlayer.pause();
   }
 
   /**
    * Plays the content video.
    */
   public void play() {
+    restorePlayer();
+    if (videoPlayer == null) {
+      playWhenSlotGranted = true;
+      return;
+    }
+    ensurePrepared();
     videoPlayer.play();
   }
 
+  // The player may have been stopped to drop its buffers under memory pressure.
+  private void ensurePrepared() {
+    if (videoPlayer.getPlaybackState() == Player.STATE_IDLE && videoPlayer.getMediaItemCount() > 0) {
+      videoPlayer.prepare();
+    }
+  }
+
+  /**
+   * Drops the buffered media and decoders of a paused player while keeping its media item and
+   * position. Playback re-prepares on the next play. Returns whether the buffers were dropped.
+   */
+  public boolean dropBuffers() {
+    if (videoPlayer == null || videoPlayer.getPlayWhenReady()) return false;
+    Log.i(CLASSTAG, "dropBuffers");
+    savePosition();
+    videoPlayer.stop();
+    return true;
+  }
+
+  /**
+   * Releases the player entirely, keeping the stream url and saved positions so that
+   * {@link #restorePlayer()} can rebuild it where it left off.
+   */
+  public void releasePlayer() {
+    if (videoPlayer == null) return;
+    Log.i(CLASSTAG, "releasePlayer");
+    savePosition();
+    for (PlayerBinding binding : playerBindings) binding.onPlayerReleasing(videoPlayer);
+    videoPlayer.removeListener(playerListener);
+    for (Player.Listener listener : extraPlayerListeners) videoPlayer.removeListener(listener);
+    for (AnalyticsListener listener : extraAnalyticsListeners) videoPlayer.removeAnalyticsListener(listener);
+    playerView.setPlayer(null);
+    videoPlayer.release();
+    videoPlayer = null;
+    PlaybackInfrastructure.get(getContext()).releaseSlot(slotHolder);
+  }
+
+  public boolean isPlayerReleased() {
+    return videoPlayer == null;
+  }
+
+  /**
+   * Rebuilds a player released by {@link #releasePlayer()} and re-prepares the stream that was
+   * playing at its saved position. If every decoder slot is playing elsewhere the player stays
+   * released until one is granted, and any playback asked for meanwhile starts then.
+   */
+  public void restorePlayer() {
+    if (videoPlayer != null) return;
+    Log.i(CLASSTAG, "restorePlayer");
+    buildPlayer();
+    if (videoPlayer == null) return;
+    if (currentAd != null) {
+      // Queued ads are not restored; they are reloaded if IMA asks for them.
+      startAdPlaylist(currentAd);
+    } else if (currentStreamUrl != null) {
+      setStreamUrl(currentStreamUrl);
+    }
+    restorePosition();
+    if (playWhenSlotGranted) {
+      playWhenSlotGranted = false;
+      ensurePrepared();
+      videoPlayer.play();
+    }
+  }
+
   /**
    * Seeks the content video.
    */
   public void seekTo(long positionMs) {
     logPosition("seekTo", positionMs);
     // Seek only if an ad is not playing. Save the content position either way.
-    if (currentAd == null) {
+    if (currentAd == null && videoPlayer != null) {
       videoPlayer.seekTo(positionMs);
     }
     savedContentPosition = positionMs;
@@ -292,6 +675,7 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
    * Useful for skipping an ad video.
    */
   public void seekToEnd() {
+    if (videoPlayer == null) return;
     long duration = videoPlayer.getDuration();
     if (duration > 0) {
       long beforeEndPos = duration - 100; // allow a bit more playback to get the ad completion.
@@ -302,7 +686,7 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
 
   public void stop() {
     Log.i(CLASSTAG, "stop");
-    videoPlayer.stop();
+    if (videoPlayer != null) videoPlayer.stop();
   }
 
   /**
@@ -310,22 +694,39 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
    */
   public void release() {
     Log.i(CLASSTAG, "release");
-    videoPlayer.release();
+    playWhenSlotGranted = false;
+    setPendingAd(null);
+    setSeekThumbnails(null);
+    if (videoPlayer != null) videoPlayer.release();
+    PlaybackInfrastructure.get(getContext()).releaseSlot(slotHolder);
   }
 
   /**
    * Returns current content video play time.
    */
   public long getContentPosition() {
-    if (currentAd != null) {
+    if (currentAd != null || videoPlayer == null) {
       return savedContentPosition;
     } else {
       return videoPlayer.getCurrentPosition();
     }
   }
 
+  /**
+   * Returns the content video's duration, or C.TIME_UNSET while an ad plays or before it is known.
+   */
+  public long getContentDuration() {
+    if (currentAd != null || videoPlayer == null) return C.TIME_UNSET;
+    return videoPlayer.getDuration();
+  }
+
+  public boolean isContentComplete() {
+    return contentHasCompleted;
+  }
+
   // i.e. ad or content
   public long getStreamPosition() {
+    if (videoPlayer == null) return currentAd != null ? savedAdPosition : savedContentPosition;
     return videoPlayer.getCurrentPosition();
   }
 
@@ -334,9 +735,17 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
    * media controller.
    */
   public void pauseContentForAdPlayback() {
+    // IMA may start a break while the fragment is still paused; the ad needs a player.
+    restorePlayer();
     disableControls();
     savePosition();
-    videoPlayer.stop();
+    if (videoPlayer != null) videoPlayer.stop();
+    isInAdBreak = true;
+    if (pendingAd != null) {
+      AdMediaInfo ad = pendingAd;
+      setPendingAd(null);
+      startAdPlaylist(ad);
+    }
   }
 
   /**
@@ -349,17 +758,27 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
       return;
     }
     Log.i(CLASSTAG, "resumeContentAfterAdPlayback");
+    isInAdBreak = false;
+    adPlaylist.clear();
+    setPendingAd(null);
+    qoeCollector.beginContent();
+    restorePlayer();
 
     // Ensure there are no remnants of any ad playbacks (matters on some older TV devices)
-    videoPlayer.stop();
+    if (videoPlayer != null) videoPlayer.stop();
 
     setStreamUrl(contentVideoUrl);
     enableControls();
+    showPlayer();
 
-    if (savedContentPosition > 0) seekTo(savedContentPosition);
+    if (savedContentPosition > 0 && !isLive) seekTo(savedContentPosition);
 
+    if (videoPlayer == null) {
+      // Waiting for a decoder slot; the content is prepared and played once one is granted.
+      playWhenSlotGranted = !contentHasCompleted;
+      return;
+    }
     videoPlayer.play();
-    showPlayer();
 
     if (contentHasCompleted) {
       videoPlayer.pause();
@@ -373,26 +792,69 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
     return new VideoAdPlayer() {
       @Override
       public void loadAd(@NonNull AdMediaInfo adMediaInfo, @NonNull AdPodInfo adPodInfo) {
+        sessionTrace.record(SessionTrace.Source.AD_PLAYER, "loadAd", adPodInfo.getPodIndex(), adMediaInfo.getUrl());
+        adPodIndex = adPodInfo.getPodIndex();
         logPosition("loadAd");
-        currentAd = adMediaInfo;
-        setStreamUrl(adMediaInfo.getUrl());
+        if (!isInAdBreak) {
+          if (adPreloadFilter != null && !adPreloadFilter.shouldPreload(adPodInfo.getPodIndex())) {
+            logPosition("loadAd skipped");
+            return;
+          }
+          // Preloaded ahead of the break; content keeps playing until it is paused for the ad.
+          setPendingAd(adMediaInfo);
+        } else if (currentAd != null && !adPlaylist.isEmpty()) {
+          queueAd(adMediaInfo);
+        } else {
+          startAdPlaylist(adMediaInfo);
+        }
       }
 
       @Override
       public void playAd(@NonNull AdMediaInfo info) {
+        sessionTrace.record(SessionTrace.Source.AD_PLAYER, "playAd", 0, info.getUrl());
         logPosition("playAd");
+        restorePlayer();
+        if (videoPlayer == null) {
+          // Waiting for a decoder slot: the ad is prepared and played once one is granted.
+          if (!info.equals(currentAd)) {
+            setPendingAd(null);
+            startAdPlaylist(info);
+          }
+          playWhenSlotGranted = true;
+          return;
+        }
+        int index = adPlaylist.indexOf(info);
+        if (index < 0) {
+          setPendingAd(null);
+          startAdPlaylist(info);
+        } else if (index != videoPlayer.getCurrentMediaItemIndex()) {
+          videoPlayer.seekToDefaultPosition(index);
+        } else if (queuedAdAwaitingPlay && videoPlayer.isPlaying()) {
+          // Already playing after a gapless transition, so report the start ourselves.
+          for (VideoAdPlayer.VideoAdPlayerCallback callback : adCallbacks) {
+            callback.onPlay(info);
+          }
+        }
+        queuedAdAwaitingPlay = false;
+        ensurePrepared();
         videoPlayer.play();
       }
 
       @Override
       public void stopAd(@NonNull AdMediaInfo info) {
-        currentAd = null;
+        sessionTrace.record(SessionTrace.Source.AD_PLAYER, "stopAd", 0, info.getUrl());
+        // With preloading, IMA may stop an ad after the player already moved past it.
+        if (info.equals(currentAd)) {
+          currentAd = null;
+        }
       }
 
       @Override
       public void pauseAd(@NonNull AdMediaInfo info) {
+        sessionTrace.record(SessionTrace.Source.AD_PLAYER, "pauseAd", 0, info.getUrl());
         logPosition("pauseAd");
-        videoPlayer.pause();
+        playWhenSlotGranted = false;
+        if (videoPlayer != null) videoPlayer.pause();
       }
 
       @Override
@@ -412,13 +874,14 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
 
       @Override
       public int getVolume() {
+        if (videoPlayer == null) return 0;
         return Math.round(videoPlayer.getVolume() * 100);
       }
 
       @Override
       @NonNull
       public VideoProgressUpdate getAdProgress() {
-        if (currentAd == null || videoPlayer.getDuration() <= 0) {
+        if (currentAd == null || videoPlayer == null || videoPlayer.getDuration() <= 0) {
           return VideoProgressUpdate.VIDEO_TIME_NOT_READY;
         }
         return new VideoProgressUpdate(
@@ -427,6 +890,82 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
     };
   }
 
+  public void addPlayerListener(Player.Listener listener) {
+    extraPlayerListeners.add(listener);
+    if (videoPlayer != null) videoPlayer.addListener(listener);
+  }
+
+  public void removePlayerListener(Player.Listener listener) {
+    extraPlayerListeners.remove(listener);
+    if (videoPlayer != null) videoPlayer.removeListener(listener);
+  }
+
+  public void addAnalyticsListener(AnalyticsListener listener) {
+    extraAnalyticsListeners.add(listener);
+    if (videoPlayer != null) videoPlayer.addAnalyticsListener(listener);
+  }
+
+  public void removeAnalyticsListener(AnalyticsListener listener) {
+    extraAnalyticsListeners.remove(listener);
+    if (videoPlayer != null) videoPlayer.removeAnalyticsListener(listener);
+  }
+
+  int getAdPodIndex() {
+    return adPodIndex;
+  }
+
+  @Override
+  public boolean dispatchKeyEvent(KeyEvent event) {
+    if (event.getAction() == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0) {
+      int keyCode = event.getKeyCode();
+      int matched = hudKeysMatched;
+      while (matched > 0 && keyCode != HUD_KEYS[matched]) matched = HUD_KEYS_FALLBACK[matched - 1];
+      if (keyCode == HUD_KEYS[matched]) matched++;
+      if (matched == HUD_KEYS.length) {
+        matched = 0;
+        togglePerformanceHud();
+      }
+      hudKeysMatched = matched;
+    }
+    // The keys still reach the player; the sequence is only watched.
+    return super.dispatchKeyEvent(event);
+  }
+
+  private static int[] prefixFallbacks(int[] keys) {
+    int[] fallbacks = new int[keys.length];
+    int length = 0;
+    for (int i = 1; i < keys.length; i++) {
+      while (length > 0 && keys[i] != keys[length]) length = fallbacks[length - 1];
+      if (keys[i] == keys[length]) length++;
+      fallbacks[i] = length;
+    }
+    return fallbacks;
+  }
+
+  /** Shows or hides the performance overlay on top of the player and ad UI. */
+  public void togglePerformanceHud() {
+    if (performanceHud == null) {
+      performanceHud = new PerformanceHud(getContext(), this);
+      addAnalyticsListener(performanceHud);
+      addView(performanceHud, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+    } else {
+      removeView(performanceHud);
+      removeAnalyticsListener(performanceHud);
+      performanceHud = null;
+    }
+  }
+
+  /** Shows the given thumbnails while the content is scrubbed, replacing any shown before. */
+  public void setSeekThumbnails(SeekThumbnails thumbnails) {
+    if (seekThumbnails != null) seekThumbnails.detach();
+    seekThumbnails = thumbnails;
+    if (seekThumbnails != null) seekThumbnails.attach(this);
+  }
+
+  public void setAdPreloadFilter(AdPreloadFilter filter) {
+    adPreloadFilter = filter;
+  }
+
   public void setAdMarkers(List<AdBreak> adBreaks) {
     long[] extraAdGroupTimesMs = null;
     boolean[] extraPlayedAdGroups = null;
@@ -441,12 +980,38 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
       }
     }
     playerView.setExtraAdGroupMarkers(extraAdGroupTimesMs, extraPlayedAdGroups);
+    // Previews must not show the content a break covers.
+    if (seekThumbnails != null) seekThumbnails.setAdBreaks(adBreaks);
   }
 
   public boolean isPlayingAd() {
     return currentAd != null;
   }
 
+  public ExoPlayer getPlayer() {
+    return videoPlayer;
+  }
+
+  public PlayerView getPlayerView() {
+    return playerView;
+  }
+
+  public EngineBenchmark getEngineBenchmark() {
+    return engineBenchmark;
+  }
+
+  public QoeCollector getQoeCollector() {
+    return qoeCollector;
+  }
+
+  public SessionTrace getSessionTrace() {
+    return sessionTrace;
+  }
+
+  Player.Listener getPlayerListener() {
+    return playerListener;
+  }
+
   public ContentProgressProvider getContentProgressProvider() {
     return contentProgressProvider;
   }
@@ -470,12 +1035,21 @@ public class VideoPlayerWithAdPlayback extends RelativeLayout {
   }
 
 
-  // On some older 4K devices we need to actually hide the actual playback view so that truex videos can show.
+  /**
+   * Hides the player under an interactive ad, as some older 4K devices cannot show the ad's video
+   * over it. Devices allowlisted in {@code player_under_overlay_devices} that can also decode two
+   * videos at once keep it visible, which avoids recreating the surface when the ad ends; it still
+   * takes no focus, so the remote only reaches the ad.
+   */
   public void hidePlayer() {
+    clearFocus();
+    setDescendantFocusability(FOCUS_BLOCK_DESCENDANTS);
+    if (!DeviceCapabilities.get(getContext()).needsHiddenPlayerForOverlay()) return;
     this.setVisibility(View.GONE);
   }
 
   public void showPlayer() {
+    setDescendantFocusability(FOCUS_BEFORE_DESCENDANTS);
     this.setVisibility(View.VISIBLE);
   }
 }
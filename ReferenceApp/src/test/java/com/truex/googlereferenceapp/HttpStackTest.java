@@ -0,0 +1,64 @@
+package com.truex.googlereferenceapp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+/** Checks the pooled client against a local cleartext HTTP/2 server. */
+public class HttpStackTest {
+  private MockWebServer server;
+  private HttpStack httpStack;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new MockWebServer();
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.start();
+    httpStack = new HttpStack(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.shutdown();
+  }
+
+  @Test
+  public void requestsShareOneHttp2Connection() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setBody("segment " + i));
+    }
+    for (int i = 0; i < 3; i++) {
+      Request request = new Request.Builder().url(server.url("/segment" + i + ".ts")).build();
+      try (Response response = httpStack.getClient().newCall(request).execute()) {
+        assertEquals(Protocol.HTTP_2, response.protocol());
+        assertEquals("segment " + i, response.body().string());
+      }
+    }
+
+    assertEquals(3, httpStack.getRequestCount());
+    assertEquals(1, httpStack.getNewConnectionCount());
+    // Every request after the first went over the same connection.
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+    assertEquals(2, server.takeRequest().getSequenceNumber());
+  }
+
+  @Test
+  public void preconnectSendsNoRequest() throws Exception {
+    String origin = server.url("/").toString().replaceAll("/$", "");
+    httpStack.preconnectNow(origin);
+
+    assertEquals(0, server.getRequestCount());
+    assertEquals(0, httpStack.getRequestCount());
+  }
+}
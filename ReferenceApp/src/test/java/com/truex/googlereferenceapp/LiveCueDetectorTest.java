@@ -0,0 +1,76 @@
+package com.truex.googlereferenceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+
+import androidx.media3.exoplayer.dash.manifest.DashManifest;
+import androidx.media3.exoplayer.dash.manifest.DashManifestParser;
+import androidx.media3.exoplayer.hls.playlist.HlsMediaPlaylist;
+import androidx.media3.exoplayer.hls.playlist.HlsPlaylistParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/** Finds cues in playlist and manifest fixtures parsed by media3's own parsers. */
+@RunWith(RobolectricTestRunner.class)
+public class LiveCueDetectorTest {
+  // 2024-01-01T00:00:00Z, the fixtures' program date time and availability start time.
+  private static final long STREAM_START_MS = 1704067200000L;
+
+  @Test
+  public void hlsCuesAreTimedByProgramDateTime() throws IOException {
+    List<LiveCueDetector.Cue> cues = LiveCueDetector.parseHls(hls("live/hls_pdt.m3u8"));
+
+    // The trailing CUE-OUT is skipped until its segment is listed, and the chapter is no break.
+    assertEquals(2, cues.size());
+    assertCue(cues.get(0), "seq102", STREAM_START_MS + 12000, 30000);
+    assertCue(cues.get(1), "splice-7", STREAM_START_MS + 60000, 60000);
+  }
+
+  @Test
+  public void hlsWithoutProgramDateTimeHasNoCues() throws IOException {
+    assertTrue(LiveCueDetector.parseHls(hls("live/hls_no_pdt.m3u8")).isEmpty());
+  }
+
+  @Test
+  public void dashCuesAreScte35EventsWithADuration() throws IOException {
+    List<LiveCueDetector.Cue> cues = LiveCueDetector.parseDash(dash("live/dash_scte35.mpd"));
+
+    assertEquals(1, cues.size());
+    assertCue(cues.get(0), "p0:11", STREAM_START_MS + 60000, 30000);
+  }
+
+  @Test
+  public void dashWithoutAvailabilityStartTimeHasNoCues() throws IOException {
+    assertTrue(LiveCueDetector.parseDash(dash("live/dash_static.mpd")).isEmpty());
+  }
+
+  private static void assertCue(LiveCueDetector.Cue cue, String id, long streamTimeMs, long durationMs) {
+    assertEquals(id, cue.id);
+    assertEquals(streamTimeMs, cue.streamTimeMs);
+    assertEquals(durationMs, cue.durationMs);
+  }
+
+  private HlsMediaPlaylist hls(String fixture) throws IOException {
+    try (InputStream stream = open(fixture)) {
+      return (HlsMediaPlaylist) new HlsPlaylistParser().parse(Uri.parse("https://example.com/live.m3u8"), stream);
+    }
+  }
+
+  private DashManifest dash(String fixture) throws IOException {
+    try (InputStream stream = open(fixture)) {
+      return new DashManifestParser().parse(Uri.parse("https://example.com/live.mpd"), stream);
+    }
+  }
+
+  private InputStream open(String fixture) {
+    return getClass().getClassLoader().getResourceAsStream(fixture);
+  }
+}
@@ -0,0 +1,74 @@
+package com.truex.googlereferenceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Reads thumbnail index fixtures the way the previews load them. */
+@RunWith(RobolectricTestRunner.class)
+public class SeekThumbnailsTest {
+  private static final String INDEX_URL = "https://example.com/thumbs/index.vtt";
+
+  @Test
+  public void cuesAreTimedAndSortedByStart() throws IOException {
+    List<SeekThumbnails.Tile> tiles = SeekThumbnails.parseVtt(read("thumbnails/sprites.vtt"), INDEX_URL);
+
+    // mm:ss.ttt and hh:mm:ss.ttt timestamps, listed out of order in the index.
+    assertEquals(4, tiles.size());
+    assertTiming(tiles.get(0), 0, 10000);
+    assertTiming(tiles.get(1), 10000, 20500);
+    assertTiming(tiles.get(2), 20500, 30000);
+    assertTiming(tiles.get(3), 3600000, 3610000);
+  }
+
+  @Test
+  public void regionsAreReadFromXywh() throws IOException {
+    List<SeekThumbnails.Tile> tiles = SeekThumbnails.parseVtt(read("thumbnails/sprites.vtt"), INDEX_URL);
+
+    assertEquals(new Rect(0, 0, 160, 90), tiles.get(0).region);
+    assertEquals(new Rect(160, 0, 320, 90), tiles.get(1).region);
+    assertEquals(new Rect(320, 90, 480, 180), tiles.get(2).region);
+  }
+
+  @Test
+  public void sheetUrlsAreResolvedAgainstTheIndex() throws IOException {
+    List<SeekThumbnails.Tile> tiles = SeekThumbnails.parseVtt(read("thumbnails/sprites.vtt"), INDEX_URL);
+
+    assertEquals("https://example.com/thumbs/sheets/sprite0.jpg", tiles.get(0).sheetUrl);
+    assertEquals("https://cdn.example.com/sprite1.jpg", tiles.get(2).sheetUrl);
+    assertEquals("https://example.com/cdn/sprite9.jpg", tiles.get(3).sheetUrl);
+  }
+
+  @Test
+  public void cueWithoutRegionIsRejected() {
+    assertThrows(IOException.class,
+      () -> SeekThumbnails.parseVtt(read("thumbnails/no_region.vtt"), INDEX_URL));
+  }
+
+  @Test
+  public void malformedIndexUrlIsRejected() {
+    assertThrows(IOException.class,
+      () -> SeekThumbnails.parseVtt(read("thumbnails/sprites.vtt"), "https://example.com/thumbs index.vtt"));
+  }
+
+  private static void assertTiming(SeekThumbnails.Tile tile, long startMs, long endMs) {
+    assertEquals(startMs, tile.startMs);
+    assertEquals(endMs, tile.endMs);
+  }
+
+  private String read(String fixture) throws IOException {
+    try (InputStream stream = getClass().getClassLoader().getResourceAsStream(fixture)) {
+      return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}